@@ -0,0 +1,84 @@
+package com.github.assemblathe1.chartographer.benchmarks;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.metrics.ChartographerMetrics;
+import com.github.assemblathe1.chartographer.services.BitmapFileService;
+import com.github.assemblathe1.chartographer.services.MappedCanvasCache;
+import com.github.assemblathe1.chartographer.services.PicturePyramid;
+import com.github.assemblathe1.chartographer.services.PictureRegionLocks;
+import com.github.assemblathe1.chartographer.services.RowBufferPool;
+import com.github.assemblathe1.chartographer.services.WriteBehindBuffer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.FileUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * {@link BitmapFileService} with its collaborators wired by hand and configured like application.yaml,
+ * working on canvases in a temporary directory.
+ */
+class BitmapEngine {
+    final MappedCanvasCache mappedCanvasCache = new MappedCanvasCache();
+    final PictureRegionLocks pictureRegionLocks = new PictureRegionLocks();
+    final WriteBehindBuffer writeBehindBuffer = new WriteBehindBuffer(mappedCanvasCache, pictureRegionLocks);
+    final RowBufferPool rowBufferPool = new RowBufferPool();
+    final ForkJoinPool fragmentBandPool = new ForkJoinPool(8);
+    final PicturePyramid picturePyramid = new PicturePyramid(mappedCanvasCache, writeBehindBuffer, rowBufferPool);
+    final BitmapFileService bitmapFileService = new BitmapFileService(mappedCanvasCache, writeBehindBuffer, picturePyramid,
+            rowBufferPool, new ChartographerMetrics(new SimpleMeterRegistry()), fragmentBandPool);
+    final Path directory;
+
+    BitmapEngine(boolean writeBehind) throws IOException {
+        ReflectionTestUtils.setField(mappedCanvasCache, "mappedSegmentSize", 1073741824L);
+        ReflectionTestUtils.setField(mappedCanvasCache, "mappedCanvasCacheSize", 16);
+        ReflectionTestUtils.setField(mappedCanvasCache, "cachedTilesPerCanvas", 32);
+        ReflectionTestUtils.setField(pictureRegionLocks, "lockTileSize", 512);
+        ReflectionTestUtils.setField(writeBehindBuffer, "enabled", writeBehind);
+        ReflectionTestUtils.setField(writeBehindBuffer, "tileSize", 256);
+        ReflectionTestUtils.setField(writeBehindBuffer, "maxBufferedBytes", 268435456L);
+        ReflectionTestUtils.setField(writeBehindBuffer, "flushInterval", 5000L);
+        ReflectionTestUtils.setField(writeBehindBuffer, "maxFragmentPixels", 1048576L);
+        ReflectionTestUtils.setField(writeBehindBuffer, "lockTileSize", 512);
+        ReflectionTestUtils.setField(picturePyramid, "maxLevel", 6);
+        ReflectionTestUtils.setField(picturePyramid, "minLevelSize", 256);
+        ReflectionTestUtils.setField(picturePyramid, "lockTileSize", 512);
+        ReflectionTestUtils.setField(bitmapFileService, "tieringTileSize", 256);
+        ReflectionTestUtils.setField(bitmapFileService, "pngCompressionLevel", 1);
+        ReflectionTestUtils.setField(bitmapFileService, "bandsMinPixels", 4194304L);
+        ReflectionTestUtils.setField(bitmapFileService, "bandRows", 64);
+        ReflectionTestUtils.setField(rowBufferPool, "poolSize", 32);
+        ReflectionTestUtils.setField(rowBufferPool, "maxPictureWidth", 20000);
+        rowBufferPool.createPool();
+        directory = Files.createTempDirectory("chartographer-benchmarks");
+    }
+
+    Picture createPicture(long id, int width, int height) throws IOException {
+        Picture picture = new Picture(id, directory.resolve(id + ".bmp").toString(), width, height, PictureStatus.READY);
+        bitmapFileService.createPicture(width, height, picture.getUrl());
+        return picture;
+    }
+
+    /**
+     * An encoded BMP fragment of the given size, as it would be uploaded by a client.
+     */
+    byte[] createFragment(int width, int height) throws IOException {
+        Picture source = createPicture(-1, width, height);
+        ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+        bitmapFileService.getPictureFragment(0, 0, width, height, source, 0, fragment);
+        bitmapFileService.deletePictureFiles(source);
+        return fragment.toByteArray();
+    }
+
+    void close() throws IOException {
+        writeBehindBuffer.flushAll();
+        mappedCanvasCache.closeAll();
+        fragmentBandPool.shutdown();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+}
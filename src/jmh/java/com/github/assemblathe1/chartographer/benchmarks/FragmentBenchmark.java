@@ -0,0 +1,105 @@
+package com.github.assemblathe1.chartographer.benchmarks;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and saving fragments of a 5000x20000 canvas at the interior, across its edges and across its full width.
+ * Reads are written one strip of rows per call; full-width reads copy runs of rows from the mapping in bulk, the others go row by row.
+ * <p>
+ * The service is called directly, without validation, locks or caches of {@code PicturesService}, so the numbers
+ * show the cost of the bitmap engine alone. With the default {@code -prof gc}, {@code gc.alloc.rate.norm} shows what
+ * a call allocates; rows come from {@code RowBufferPool}, so it should stay at a few hundred bytes whatever the size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FragmentBenchmark {
+    private static final int PICTURE_WIDTH = 5000;
+    private static final int PICTURE_HEIGHT = 20000;
+
+    @Param({"interior", "negative", "overhanging", "fullWidth"})
+    private String placement;
+    @Param({"256", "2048"})
+    private int size;
+    @Param({"true", "false"})
+    private boolean writeBehind;
+
+    private BitmapEngine engine;
+    private Picture picture;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private byte[] fragment;
+
+    @Setup
+    public void setUp() throws IOException {
+        engine = new BitmapEngine(writeBehind);
+        picture = engine.createPicture(1, PICTURE_WIDTH, PICTURE_HEIGHT);
+        width = size;
+        height = size;
+        switch (placement) {
+            case "interior":
+                x = PICTURE_WIDTH / 3;
+                y = PICTURE_HEIGHT / 3;
+                break;
+            case "negative":
+                x = -size / 2;
+                y = -size / 2;
+                break;
+            case "overhanging":
+                x = PICTURE_WIDTH - size / 2;
+                y = PICTURE_HEIGHT - size / 2;
+                break;
+            case "fullWidth":
+                x = 0;
+                y = PICTURE_HEIGHT / 3;
+                width = PICTURE_WIDTH;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown placement " + placement);
+        }
+        fragment = engine.createFragment(width, height);
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() {
+        engine.writeBehindBuffer.flushAll();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        engine.close();
+    }
+
+    @Benchmark
+    public void getPictureFragment() throws IOException {
+        engine.bitmapFileService.getPictureFragment(x, y, width, height, picture, 0, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void savePictureFragment() throws IOException {
+        engine.bitmapFileService.savePictureFragment(x, y, width, height, new ByteArrayInputStream(fragment), picture);
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.assemblathe1.chartographer.load;
+
+import com.github.assemblathe1.chartographer.load.LoadScenario.Operation;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latencies of the measured requests by operation, kept in full so that percentiles are exact.
+ * Throughput is printed twice: of all the requests sent, and of the successful ones only.
+ */
+public class LoadReport {
+    private final Map<Operation, Samples> samples = new EnumMap<>(Operation.class);
+
+    public LoadReport() {
+        for (Operation operation : Operation.values()) samples.put(operation, new Samples());
+    }
+
+    /**
+     * @param ok whether the request got the expected status; failed requests are counted, their latency is not
+     */
+    public void record(Operation operation, long nanos, boolean ok) {
+        Samples operationSamples = samples.get(operation);
+        synchronized (operationSamples) {
+            if (ok) operationSamples.add(nanos);
+            else operationSamples.errors++;
+        }
+    }
+
+    public void print(PrintStream out, double seconds) {
+        out.printf("%-8s %9s %7s %9s %9s %9s %9s %9s %9s%n", "op", "count", "errors", "ops/s", "ok ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        long total = 0;
+        long totalErrors = 0;
+        for (Map.Entry<Operation, Samples> entry : samples.entrySet()) {
+            Samples operationSamples = entry.getValue();
+            long[] latencies = Arrays.copyOf(operationSamples.latencies, operationSamples.count);
+            Arrays.sort(latencies);
+            total += latencies.length;
+            totalErrors += operationSamples.errors;
+            out.printf("%-8s %9d %7d %9.1f %9.1f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), latencies.length, operationSamples.errors,
+                    (latencies.length + operationSamples.errors) / seconds, latencies.length / seconds,
+                    percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99), percentile(latencies, 1.0));
+        }
+        out.printf("%-8s %9d %7d %9.1f %9.1f%n", "total", total, totalErrors, (total + totalErrors) / seconds, total / seconds);
+    }
+
+    /**
+     * Nearest-rank percentile in milliseconds.
+     */
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1_000_000.0;
+    }
+
+    private static class Samples {
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+
+        private void add(long nanos) {
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.assemblathe1.chartographer.load;
+
+import com.github.assemblathe1.chartographer.dtos.PictureRegion;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Settings of a load run, given as {@code name=value} arguments, and the choice of operations and rectangles.
+ * <p>
+ * Rectangles are of three kinds: around the centre of the picture, so that concurrent uploads and reads
+ * overlap in the same lock and cache tiles ({@code hotSpot} share), across one of the picture edges,
+ * with negative or overhanging coordinates ({@code edge} share), and anywhere inside the picture (the rest).
+ */
+public class LoadScenario {
+    public enum Operation {
+        CREATE,                                                                         // POST /chartas/
+        UPLOAD,                                                                         // POST /chartas/{id}/ with an image/bmp body
+        READ,                                                                           // GET /chartas/{id}/
+        DELETE                                                                          // DELETE /chartas/{id}/
+    }
+
+    private int threads = 16;
+    private int warmup = 10;                                                            // seconds not measured
+    private int duration = 60;                                                          // seconds measured
+    private int pictures = 8;                                                           // pictures created before the run, never deleted
+    private int pictureWidth = 5000;
+    private int pictureHeight = 5000;
+    private int fragmentWidth = 512;
+    private int fragmentHeight = 512;
+    private double hotSpot = 0.3;
+    private double edge = 0.2;
+    private long seed = 42;
+    private final Map<Operation, Integer> mix = new EnumMap<>(Map.of(
+            Operation.CREATE, 1,
+            Operation.UPLOAD, 4,
+            Operation.READ, 12,
+            Operation.DELETE, 1
+    ));
+
+    /**
+     * Parses arguments like {@code threads=32 duration=120 mix=create:1,upload:4,read:12,delete:1 hotSpot=0.5}.
+     * Settings that are not given keep their defaults.
+     */
+    public static LoadScenario parse(String... args) {
+        LoadScenario scenario = new LoadScenario();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) throw new IllegalArgumentException("Argument " + arg + " is not name=value");
+            String value = arg.substring(separator + 1);
+            switch (arg.substring(0, separator)) {
+                case "threads": scenario.threads = Integer.parseInt(value); break;
+                case "warmup": scenario.warmup = Integer.parseInt(value); break;
+                case "duration": scenario.duration = Integer.parseInt(value); break;
+                case "pictures": scenario.pictures = Integer.parseInt(value); break;
+                case "pictureWidth": scenario.pictureWidth = Integer.parseInt(value); break;
+                case "pictureHeight": scenario.pictureHeight = Integer.parseInt(value); break;
+                case "fragmentWidth": scenario.fragmentWidth = Integer.parseInt(value); break;
+                case "fragmentHeight": scenario.fragmentHeight = Integer.parseInt(value); break;
+                case "hotSpot": scenario.hotSpot = Double.parseDouble(value); break;
+                case "edge": scenario.edge = Double.parseDouble(value); break;
+                case "seed": scenario.seed = Long.parseLong(value); break;
+                case "mix": scenario.parseMix(value); break;
+                default: throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        if (scenario.pictures < 1) throw new IllegalArgumentException("At least one picture is needed");
+        if (scenario.mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("Mix has no operations");
+        }
+        return scenario;
+    }
+
+    private void parseMix(String value) {
+        mix.replaceAll((operation, weight) -> 0);
+        for (String entry : value.split(",")) {
+            String[] weight = entry.split(":");
+            mix.put(Operation.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1].trim()));
+        }
+    }
+
+    public Operation nextOperation(Random random) {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int pick = random.nextInt(total);
+        for (Map.Entry<Operation, Integer> weight : mix.entrySet()) {
+            pick -= weight.getValue();
+            if (pick < 0) return weight.getKey();
+        }
+        throw new IllegalStateException("Mix has no operations");
+    }
+
+    public PictureRegion nextRegion(Random random) {
+        int width = fragmentWidth;
+        int height = fragmentHeight;
+        double kind = random.nextDouble();
+        if (kind < hotSpot) {
+            // Within a quarter of the fragment of the centre, so every two hot rectangles overlap
+            return new PictureRegion(
+                    pictureWidth / 2 - width / 2 + random.nextInt(width / 2 + 1) - width / 4,
+                    pictureHeight / 2 - height / 2 + random.nextInt(height / 2 + 1) - height / 4,
+                    width, height);
+        }
+        if (kind < hotSpot + edge) {
+            int x = random.nextInt(Math.max(pictureWidth - width, 0) + 1);
+            int y = random.nextInt(Math.max(pictureHeight - height, 0) + 1);
+            switch (random.nextInt(4)) {
+                case 0: return new PictureRegion(-width / 2, y, width, height);
+                case 1: return new PictureRegion(pictureWidth - width / 2, y, width, height);
+                case 2: return new PictureRegion(x, -height / 2, width, height);
+                default: return new PictureRegion(x, pictureHeight - height / 2, width, height);
+            }
+        }
+        return new PictureRegion(
+                random.nextInt(Math.max(pictureWidth - width, 0) + 1),
+                random.nextInt(Math.max(pictureHeight - height, 0) + 1),
+                width, height);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getWarmup() {
+        return warmup;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getPictures() {
+        return pictures;
+    }
+
+    public int getPictureWidth() {
+        return pictureWidth;
+    }
+
+    public int getPictureHeight() {
+        return pictureHeight;
+    }
+
+    public int getFragmentWidth() {
+        return fragmentWidth;
+    }
+
+    public int getFragmentHeight() {
+        return fragmentHeight;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + threads + " warmup=" + warmup + " duration=" + duration + " pictures=" + pictures
+                + " picture=" + pictureWidth + "x" + pictureHeight + " fragment=" + fragmentWidth + "x" + fragmentHeight
+                + " hotSpot=" + hotSpot + " edge=" + edge + " seed=" + seed + " mix=" + mix;
+    }
+}
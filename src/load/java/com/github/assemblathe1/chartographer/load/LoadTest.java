@@ -0,0 +1,249 @@
+package com.github.assemblathe1.chartographer.load;
+
+import com.github.assemblathe1.chartographer.ChartographerApplication;
+import com.github.assemblathe1.chartographer.dtos.PictureRegion;
+import com.github.assemblathe1.chartographer.load.LoadScenario.Operation;
+import org.apache.commons.io.FileUtils;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Macro load test: starts the service on a random port with an in-memory database and a temporary picture folder,
+ * and lets {@code threads} clients send a mix of creates, uploads, reads and deletes over HTTP, as many scientists
+ * working at once would. Requests of the warm-up are not measured; throughput and latency percentiles of the rest
+ * are printed by operation.
+ * <p>
+ * Pictures created before the run serve the uploads and reads and are never deleted; deletes take pictures
+ * created during the run, and a delete with none to take is sent as a create instead. A picture created during the run
+ * becomes a target once its canvas is allocated, and a picture taken by a delete is never a target again. Pictures
+ * with uploads or reads in flight are not taken by deletes, so every failed request is a failure of the service.
+ */
+public class LoadTest {
+    private final LoadScenario scenario;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final LoadReport report = new LoadReport();
+    private final List<String> pictures = new ArrayList<>();                           // created before the run
+    private final List<String> createdPictures = new ArrayList<>();                    // created during the run and READY, guarded by itself
+    private final Map<String, Integer> usedPictures = new HashMap<>();                 // uploads and reads in flight, guarded by createdPictures
+    private final URI baseUri;
+    private final byte[] fragment;
+
+    private LoadTest(LoadScenario scenario, int port) {
+        this.scenario = scenario;
+        this.baseUri = URI.create("http://localhost:" + port + "/chartas/");
+        this.fragment = createFragment(scenario.getFragmentWidth(), scenario.getFragmentHeight(), new Random(scenario.getSeed()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadScenario scenario = LoadScenario.parse(args);
+        Path directory = Files.createTempDirectory("chartographer-load");
+        ConfigurableApplicationContext context = SpringApplication.run(ChartographerApplication.class,
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:load;MODE=PostgreSQL;DB_CLOSE_DELAY=-1",
+                "--spring.jpa.show-sql=false",
+                "--logging.level.root=WARN",
+                "--journal.folder=" + directory.resolve("journal"),
+                directory.resolve("pictures").toString());
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            LoadTest loadTest = new LoadTest(scenario, port);
+            loadTest.createPictures();
+            System.out.println(scenario);
+            loadTest.run();
+            loadTest.report.print(System.out, scenario.getDuration());
+        } finally {
+            context.close();
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    /**
+     * Creates the pictures of the run and waits until their canvases are allocated.
+     */
+    private void createPictures() throws IOException, InterruptedException {
+        for (int i = 0; i < scenario.getPictures(); i++) {
+            HttpResponse<String> response = create();
+            if (response.statusCode() != 201) throw new IllegalStateException("Picture is not created: " + response.statusCode());
+            pictures.add(response.body());
+        }
+        for (String id : pictures) {
+            if (!awaitReady(id)) throw new IllegalStateException("Picture " + id + " is not allocated");
+        }
+    }
+
+    /**
+     * Waits while the picture is PENDING.
+     *
+     * @return whether the canvas of the picture was allocated
+     */
+    private boolean awaitReady(String id) throws IOException, InterruptedException {
+        int status;
+        while ((status = read(id, new PictureRegion(0, 0, 1, 1)).statusCode()) == 503) TimeUnit.MILLISECONDS.sleep(100);
+        return status == 200;
+    }
+
+    private void run() throws InterruptedException, ExecutionException {
+        long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(scenario.getWarmup());
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(scenario.getDuration());
+        ExecutorService clients = Executors.newFixedThreadPool(scenario.getThreads());
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < scenario.getThreads(); i++) {
+                Random random = new Random(scenario.getSeed() + i);
+                tasks.add(() -> {
+                    while (System.nanoTime() < end) runOperation(random, measureFrom);
+                    return null;
+                });
+            }
+            for (Future<Void> task : clients.invokeAll(tasks)) task.get();
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private void runOperation(Random random, long measureFrom) throws InterruptedException {
+        Operation operation = scenario.nextOperation(random);
+        String deletedId = null;
+        if (operation == Operation.DELETE) {
+            deletedId = takeCreatedPicture(random);
+            if (deletedId == null) operation = Operation.CREATE;
+        }
+        String targetId = operation == Operation.UPLOAD || operation == Operation.READ ? pickPicture(random) : null;
+        String createdId = null;
+        long started = System.nanoTime();
+        boolean ok;
+        try {
+            switch (operation) {
+                case CREATE:
+                    HttpResponse<String> created = create();
+                    ok = created.statusCode() == 201;
+                    if (ok) createdId = created.body();
+                    break;
+                case UPLOAD:
+                    ok = upload(targetId, scenario.nextRegion(random)).statusCode() == 200;
+                    break;
+                case READ:
+                    ok = read(targetId, scenario.nextRegion(random)).statusCode() == 200;
+                    break;
+                case DELETE:
+                    ok = delete(deletedId).statusCode() == 200;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + operation);
+            }
+        } catch (IOException e) {
+            ok = false;
+        } finally {
+            if (targetId != null) releasePicture(targetId);
+        }
+        if (started >= measureFrom) report.record(operation, System.nanoTime() - started, ok);
+        // The wait for the canvas is not part of the measured create
+        if (createdId != null && awaitReadyQuietly(createdId)) {
+            synchronized (createdPictures) {
+                createdPictures.add(createdId);
+            }
+        }
+    }
+
+    private boolean awaitReadyQuietly(String id) throws InterruptedException {
+        try {
+            return awaitReady(id);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String pickPicture(Random random) {
+        synchronized (createdPictures) {
+            int index = random.nextInt(pictures.size() + createdPictures.size());
+            String id = index < pictures.size() ? pictures.get(index) : createdPictures.get(index - pictures.size());
+            usedPictures.merge(id, 1, Integer::sum);
+            return id;
+        }
+    }
+
+    private void releasePicture(String id) {
+        synchronized (createdPictures) {
+            usedPictures.computeIfPresent(id, (key, requests) -> requests > 1 ? requests - 1 : null);
+        }
+    }
+
+    /**
+     * Takes a created picture that no upload or read is using, it is no longer picked as a target from then on.
+     */
+    private String takeCreatedPicture(Random random) {
+        synchronized (createdPictures) {
+            List<Integer> unused = new ArrayList<>();
+            for (int i = 0; i < createdPictures.size(); i++) {
+                if (!usedPictures.containsKey(createdPictures.get(i))) unused.add(i);
+            }
+            if (unused.isEmpty()) return null;
+            return createdPictures.remove((int) unused.get(random.nextInt(unused.size())));
+        }
+    }
+
+    private HttpResponse<String> create() throws IOException, InterruptedException {
+        URI uri = baseUri.resolve("?width=" + scenario.getPictureWidth() + "&height=" + scenario.getPictureHeight());
+        return client.send(HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<Void> upload(String id, PictureRegion region) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(fragmentUri(id, region))
+                .header("Content-Type", "image/bmp")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(fragment))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    private HttpResponse<Void> read(String id, PictureRegion region) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(fragmentUri(id, region)).GET().build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    private HttpResponse<Void> delete(String id) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(baseUri.resolve(id)).DELETE().build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    private URI fragmentUri(String id, PictureRegion region) {
+        return baseUri.resolve(id + "?x=" + region.getX() + "&y=" + region.getY()
+                + "&width=" + region.getWidth() + "&height=" + region.getHeight());
+    }
+
+    /**
+     * A bottom-up 24-bit BMP of random pixels; every upload sends the same bytes.
+     */
+    private static byte[] createFragment(int width, int height, Random random) {
+        int rowLength = (width * 3 + 3) / 4 * 4;
+        int imageLength = rowLength * height;
+        ByteBuffer bmp = ByteBuffer.allocate(54 + imageLength).order(ByteOrder.LITTLE_ENDIAN);
+        bmp.put((byte) 'B').put((byte) 'M').putInt(54 + imageLength).putInt(0).putInt(54);
+        bmp.putInt(40).putInt(width).putInt(height).putShort((short) 1).putShort((short) 24)
+                .putInt(0).putInt(imageLength).putInt(0).putInt(0).putInt(0).putInt(0);
+        byte[] pixels = new byte[imageLength];
+        random.nextBytes(pixels);
+        bmp.put(pixels);
+        return bmp.array();
+    }
+}
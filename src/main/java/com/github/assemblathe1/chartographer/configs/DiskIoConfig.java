@@ -0,0 +1,56 @@
+package com.github.assemblathe1.chartographer.configs;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Bounded executor for the disk work of fragment requests.
+ * <p>
+ * Fragment endpoints validate on the Tomcat thread and hand the reading or writing over to this executor, so slow
+ * fragments occupy disk I/O threads and not request threads. When the queue is full the request is rejected with
+ * 503 and Retry-After instead of waiting in line.
+ * <p>
+ * Large fragments are additionally split into row bands, which a disk I/O thread hands to the band pool
+ * ({@code bands.parallelism} workers), so one big window keeps several cores and device queues busy.
+ */
+@Configuration
+public class DiskIoConfig implements WebMvcConfigurer {
+    @Value("${diskIo.poolSize}")
+    private int poolSize;
+    @Value("${diskIo.queueCapacity}")
+    private int queueCapacity;
+    @Value("${bands.parallelism}")
+    private int bandsParallelism;
+
+    @Bean
+    public ThreadPoolTaskExecutor diskIoExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("disk-io-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ForkJoinPool fragmentBandPool() {
+        return new ForkJoinPool(bandsParallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("fragment-band-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(diskIoExecutor());
+    }
+}
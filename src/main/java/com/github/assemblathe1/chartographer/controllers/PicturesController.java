@@ -1,12 +1,25 @@
 package com.github.assemblathe1.chartographer.controllers;
 
+import com.github.assemblathe1.chartographer.dtos.FragmentFormat;
+import com.github.assemblathe1.chartographer.dtos.FragmentResult;
+import com.github.assemblathe1.chartographer.dtos.PictureRegion;
+import com.github.assemblathe1.chartographer.services.BitmapFileService;
 import com.github.assemblathe1.chartographer.services.PicturesService;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 
 
 @RestController
@@ -26,27 +39,74 @@ public class PicturesController {
 
     @PostMapping("/{id}")
     @ResponseStatus(HttpStatus.OK)
-    public void savePictureFragment(
+    public Callable<Void> savePictureFragment(
             @PathVariable String id,
             @RequestParam(name = "x") Integer x,
             @RequestParam(name = "y") Integer y,
             @RequestParam(name = "width") Integer width,
             @RequestParam(name = "height") Integer height,
             @RequestParam("file") MultipartFile file) {
-        picturesService.savePictureFragment(id, x, y, width, height, file);
+        return picturesService.savePictureFragment(id, x, y, width, height, file);
+    }
+
+    @PostMapping(value = "/{id}", consumes = "image/bmp")
+    @ResponseStatus(HttpStatus.OK)
+    public Callable<Void> savePictureFragment(
+            @PathVariable String id,
+            @RequestParam(name = "x") Integer x,
+            @RequestParam(name = "y") Integer y,
+            @RequestParam(name = "width") Integer width,
+            @RequestParam(name = "height") Integer height,
+            @RequestHeader(name = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+            InputStream pictureFragment) {
+        long length = contentLength == null ? BitmapFileService.UNKNOWN_LENGTH : contentLength;
+        return picturesService.savePictureFragment(id, x, y, width, height, pictureFragment, length);
+    }
+
+    @PostMapping(value = "/{id}/fragments", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    public Callable<List<FragmentResult>> savePictureFragments(
+            @PathVariable String id,
+            InputStream pictureFragments) {
+        return picturesService.savePictureFragments(id, pictureFragments);
     }
 
     @GetMapping(value = "/{id}")
-    public ResponseEntity<byte[]> getPictureFragment(
+    public ResponseEntity<StreamingResponseBody> getPictureFragment(
             @PathVariable String id,
             @RequestParam(name = "x") Integer x,
             @RequestParam(name = "y") Integer y,
             @RequestParam(name = "width") Integer width,
-            @RequestParam(name = "height") Integer height) {
+            @RequestParam(name = "height") Integer height,
+            @RequestParam(name = "level", defaultValue = "0") Integer level,
+            @RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept,
+            WebRequest webRequest) {
+        FragmentFormat format = FragmentFormat.negotiate(accept);
+        // Answers 304 when If-None-Match holds the current ETag, and adds the ETag header otherwise
+        if (webRequest.checkNotModified(picturesService.getPictureFragmentETag(id, x, y, width, height, level, format))) return null;
+        StreamingResponseBody pictureFragment = picturesService.getPictureFragment(id, x, y, width, height, level, format);
+        ResponseEntity.BodyBuilder response = ResponseEntity
+                .ok()
+                .contentType(format.getMediaType())
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        // The length of a PNG is only known once it is encoded, it is sent chunked
+        if (format == FragmentFormat.BMP) response.contentLength(picturesService.getPictureFragmentLength(width, height));
+        return response.body(pictureFragment);
+    }
+
+    @GetMapping(value = "/{id}/fragments")
+    public ResponseEntity<StreamingResponseBody> getPictureFragments(
+            @PathVariable String id,
+            @RequestParam(name = "regions") String regions,
+            @RequestParam(name = "level", defaultValue = "0") Integer level) {
+        List<PictureRegion> pictureRegions = picturesService.parseRegions(regions);
+        String boundary = UUID.randomUUID().toString();
+        StreamingResponseBody pictureFragments = picturesService.getPictureFragments(id, pictureRegions, level, boundary);
         return ResponseEntity
                 .ok()
-                .contentType(MediaType.valueOf("image/bmp"))
-                .body(picturesService.getPictureFragment(id, x, y, width, height).toByteArray());
+                .contentType(new MediaType("multipart", "mixed", Map.of("boundary", boundary)))
+                .contentLength(picturesService.getPictureFragmentsLength(id, pictureRegions, level, boundary))
+                .body(pictureFragments);
     }
 
     @DeleteMapping(value = "/{id}")
@@ -0,0 +1,45 @@
+package com.github.assemblathe1.chartographer.dtos;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.util.List;
+
+/**
+ * Encodings a fragment can be served in. Uncompressed BMP stays the default for clients that do not ask for more.
+ */
+public enum FragmentFormat {
+    BMP(MediaType.valueOf("image/bmp")),
+    PNG(MediaType.IMAGE_PNG);
+
+    private final MediaType mediaType;
+
+    FragmentFormat(MediaType mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Picks the most preferred format of an Accept header, BMP when the header names none of them or cannot be parsed.
+     */
+    public static FragmentFormat negotiate(String accept) {
+        if (accept == null || accept.isBlank()) return BMP;
+        List<MediaType> acceptedTypes;
+        try {
+            acceptedTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return BMP;
+        }
+        MediaType.sortBySpecificityAndQuality(acceptedTypes);
+        for (MediaType acceptedType : acceptedTypes) {
+            if (acceptedType.getQualityValue() == 0) continue;
+            for (FragmentFormat format : values()) {
+                if (acceptedType.includes(format.mediaType)) return format;
+            }
+        }
+        return BMP;
+    }
+}
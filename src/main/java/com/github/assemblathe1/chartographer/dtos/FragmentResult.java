@@ -0,0 +1,19 @@
+package com.github.assemblathe1.chartographer.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FragmentResult {
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private int statusCode;
+    private List<String> errorFieldsMessages;
+}
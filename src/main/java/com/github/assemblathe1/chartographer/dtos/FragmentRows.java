@@ -0,0 +1,19 @@
+package com.github.assemblathe1.chartographer.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Pixels of a picture region, rows top-down and 3 bytes per pixel without BMP padding.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FragmentRows {
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private byte[] rows;
+}
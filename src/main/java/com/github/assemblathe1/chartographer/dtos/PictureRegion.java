@@ -0,0 +1,15 @@
+package com.github.assemblathe1.chartographer.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PictureRegion {
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+}
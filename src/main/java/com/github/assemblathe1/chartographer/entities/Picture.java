@@ -26,9 +26,26 @@ public class Picture {
     @Column(name = "height")
     private Integer height;
 
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status")
+    private PictureStatus status = PictureStatus.READY;
+
+    @Column(name = "storage_root")
+    private String storageRoot;
+
     public Picture(String url, Integer width, Integer height) {
         this.url = url;
         this.width = width;
         this.height = height;
     }
+
+    public Picture(String url, Integer width, Integer height, PictureStatus status) {
+        this(url, width, height);
+        this.status = status;
+    }
+
+    public Picture(Long id, String url, Integer width, Integer height, PictureStatus status) {
+        this(url, width, height, status);
+        this.id = id;
+    }
 }
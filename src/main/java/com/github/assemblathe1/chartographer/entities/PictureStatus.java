@@ -0,0 +1,8 @@
+package com.github.assemblathe1.chartographer.entities;
+
+public enum PictureStatus {
+    PENDING,
+    READY,
+    FAILED,
+    DELETED
+}
@@ -1,14 +1,24 @@
 package com.github.assemblathe1.chartographer.exceptions;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.RejectedExecutionException;
+
 @ControllerAdvice
 @Slf4j
 public class GlobalExceptionHandler {
+    @Value("${diskIo.retryAfter}")
+    private String diskIoRetryAfter;
+    @Value("${allocation.retryAfter}")
+    private String allocationRetryAfter;
+
     @ExceptionHandler
     public ResponseEntity<AppError> catchResourceNotFoundException(ResourceNotFoundException e) {
         log.error(e.getMessage(), e);
@@ -16,8 +26,10 @@ public class GlobalExceptionHandler {
     }
 
     @ExceptionHandler
-    public ResponseEntity<AppError> catchWritingToDiskException(WritingToDiskException e) {
+    public ResponseEntity<AppError> catchWritingToDiskException(WritingToDiskException e, HttpServletResponse response) {
         log.error(e.getMessage(), e);
+        // A fragment that failed before its first byte may already carry the BMP content type and length
+        if (!response.isCommitted()) response.reset();
         return new ResponseEntity<>(new AppError(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage()), HttpStatus.INTERNAL_SERVER_ERROR);
     }
 
@@ -26,4 +38,24 @@ public class GlobalExceptionHandler {
         log.error(e.getMessage(), e);
         return new ResponseEntity<>(new FieldsValidationError(e.getErrorFieldsMessages()), HttpStatus.BAD_REQUEST);
     }
+
+    @ExceptionHandler
+    public ResponseEntity<AppError> catchRejectedExecutionException(RejectedExecutionException e, HttpServletResponse response) {
+        log.warn(e.getMessage());
+        // A fragment response may already carry the BMP content type and length
+        response.reset();
+        return ResponseEntity
+                .status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, diskIoRetryAfter)
+                .body(new AppError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Disk I/O queue is full, retry later"));
+    }
+
+    @ExceptionHandler
+    public ResponseEntity<AppError> catchPictureNotReadyException(PictureNotReadyException e) {
+        log.warn(e.getMessage());
+        return ResponseEntity
+                .status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, allocationRetryAfter)
+                .body(new AppError(HttpStatus.SERVICE_UNAVAILABLE.value(), e.getMessage()));
+    }
 }
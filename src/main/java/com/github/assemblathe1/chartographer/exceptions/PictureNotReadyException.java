@@ -0,0 +1,7 @@
+package com.github.assemblathe1.chartographer.exceptions;
+
+public class PictureNotReadyException extends RuntimeException {
+    public PictureNotReadyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,11 @@
+package com.github.assemblathe1.chartographer.exceptions;
+
+/**
+ * A streamed response failed after part of its body was written. It is deliberately left to the servlet container,
+ * which closes the connection, so the client sees a broken response instead of a short body that ends normally.
+ */
+public class ResponseAbortedException extends RuntimeException {
+    public ResponseAbortedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.assemblathe1.chartographer.metrics;
+
+import com.github.assemblathe1.chartographer.services.FragmentCache;
+import com.github.assemblathe1.chartographer.services.WriteBehindBuffer;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Counters of the in-memory fragment cache and the size of the write-behind buffer.
+ */
+@Component
+@RequiredArgsConstructor
+public class CacheMetrics implements MeterBinder {
+    private final FragmentCache fragmentCache;
+    private final WriteBehindBuffer writeBehindBuffer;
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        bindFragmentCacheCounter(meterRegistry, "chartographer.fragment.cache.gets", "result", "hit", FragmentCache::getHits);
+        bindFragmentCacheCounter(meterRegistry, "chartographer.fragment.cache.gets", "result", "miss", FragmentCache::getMisses);
+        bindFragmentCacheCounter(meterRegistry, "chartographer.fragment.cache.removals", "cause", "eviction", FragmentCache::getEvictions);
+        bindFragmentCacheCounter(meterRegistry, "chartographer.fragment.cache.removals", "cause", "invalidation", FragmentCache::getInvalidations);
+        Gauge.builder("chartographer.fragment.cache.size", fragmentCache, FragmentCache::getCachedBytes)
+                .description("Bytes of encoded fragments in the cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("chartographer.write.behind.size", writeBehindBuffer, WriteBehindBuffer::getBufferedBytes)
+                .description("Bytes of dirty tiles waiting to be flushed")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    private void bindFragmentCacheCounter(MeterRegistry meterRegistry, String name, String tag, String value, ToDoubleFunction<FragmentCache> count) {
+        FunctionCounter.builder(name, fragmentCache, count)
+                .tag(tag, value)
+                .register(meterRegistry);
+    }
+}
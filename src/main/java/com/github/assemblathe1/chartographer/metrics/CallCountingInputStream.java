@@ -0,0 +1,25 @@
+package com.github.assemblathe1.chartographer.metrics;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+import java.io.InputStream;
+
+/**
+ * Counts the read calls that reach the wrapped stream, whatever the number of bytes they return.
+ */
+public class CallCountingInputStream extends ProxyInputStream {
+    private int calls;
+
+    public CallCountingInputStream(InputStream inputStream) {
+        super(inputStream);
+    }
+
+    public int getCalls() {
+        return calls;
+    }
+
+    @Override
+    protected void beforeRead(int n) {
+        calls++;
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.assemblathe1.chartographer.metrics;
+
+import org.apache.commons.io.output.ProxyOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the write and flush calls that reach the wrapped stream, whatever the number of bytes in each.
+ */
+public class CallCountingOutputStream extends ProxyOutputStream {
+    private int calls;
+
+    public CallCountingOutputStream(OutputStream outputStream) {
+        super(outputStream);
+    }
+
+    public int getCalls() {
+        return calls;
+    }
+
+    @Override
+    protected void beforeWrite(int n) {
+        calls++;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        calls++;
+        super.flush();
+    }
+}
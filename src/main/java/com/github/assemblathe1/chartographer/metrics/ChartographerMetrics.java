@@ -0,0 +1,130 @@
+package com.github.assemblathe1.chartographer.metrics;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Meters of the fragment and canvas hot paths, published on /actuator/prometheus.
+ * <p>
+ * No meter is tagged with a picture id, so the number of series never grows with the number of stored pictures.
+ * Requests in flight are published as a total and as the number of pictures they touch.
+ */
+@Component
+@RequiredArgsConstructor
+public class ChartographerMetrics {
+    public static final String GET = "get";
+    public static final String GET_REGIONS = "getRegions";
+    public static final String SAVE = "save";
+
+    private static final long MEGAPIXEL = 1_000_000L;
+
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final ConcurrentMap<Long, Integer> inFlightRequestsByPicture = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void registerGauges() {
+        Gauge.builder("chartographer.requests.in.flight", inFlightRequests, AtomicInteger::get)
+                .description("Fragment requests that are being served")
+                .register(meterRegistry);
+        Gauge.builder("chartographer.pictures.in.flight", inFlightRequestsByPicture, Map::size)
+                .description("Pictures with fragment requests that are being served")
+                .register(meterRegistry);
+    }
+
+    public Timer.Sample startTimer() {
+        return Timer.start(meterRegistry);
+    }
+
+    /**
+     * Records the whole fragment request, including the wait for region locks, tagged by the fragment shape.
+     */
+    public void stopFragmentTimer(Timer.Sample sample, String operation, Picture picture, int x, int y, int width, int height) {
+        sample.stop(Timer.builder("chartographer.fragment")
+                .description("Fragment requests from lookup to the last written byte")
+                .tag("operation", operation)
+                .tag("shape", getFragmentShape(picture, x, y, width, height))
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    /**
+     * Records the transfer of one fragment. The canvas is memory-mapped, so the calls to the request or response
+     * stream are the only system calls a fragment may cost; they are counted on the stream itself.
+     */
+    public void recordFragmentTransfer(String operation, long bytes, int rows, int streamCalls) {
+        DistributionSummary.builder("chartographer.fragment.bytes")
+                .description("Bytes read from the request or written to the response per fragment")
+                .baseUnit("bytes")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .record(bytes);
+        DistributionSummary.builder("chartographer.fragment.rows")
+                .description("Canvas rows copied per fragment")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .record(rows);
+        DistributionSummary.builder("chartographer.fragment.stream.calls")
+                .description("Calls to the request or response stream per fragment")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .record(streamCalls);
+    }
+
+    /**
+     * Records a canvas creation whether it succeeded or not, tagged by the resulting status, READY or FAILED.
+     */
+    public void stopCanvasCreationTimer(Timer.Sample sample, int width, int height, PictureStatus status) {
+        sample.stop(Timer.builder("chartographer.canvas.create")
+                .description("Creation of a canvas together with its overview levels")
+                .tag("size", getCanvasSize(width, height))
+                .tag("status", status.name().toLowerCase())
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    public <T> T recordRepositoryLookup(Supplier<T> lookup) {
+        return Timer.builder("chartographer.repository.lookup")
+                .description("Picture lookups that missed the metadata cache")
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(lookup);
+    }
+
+    public void requestStarted(Picture picture) {
+        inFlightRequests.incrementAndGet();
+        inFlightRequestsByPicture.merge(picture.getId(), 1, Integer::sum);
+    }
+
+    public void requestFinished(Picture picture) {
+        inFlightRequests.decrementAndGet();
+        inFlightRequestsByPicture.computeIfPresent(picture.getId(), (id, requests) -> requests > 1 ? requests - 1 : null);
+    }
+
+    private String getFragmentShape(Picture picture, int x, int y, int width, int height) {
+        if (x <= 0 && x + width >= picture.getWidth()) return "fullWidth";
+        if (x < 0 || y < 0 || x + width > picture.getWidth() || y + height > picture.getHeight()) return "edge";
+        return "interior";
+    }
+
+    private String getCanvasSize(int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels < MEGAPIXEL) return "small";
+        if (pixels < 25 * MEGAPIXEL) return "medium";
+        if (pixels < 100 * MEGAPIXEL) return "large";
+        return "huge";
+    }
+}
@@ -1,9 +1,22 @@
 package com.github.assemblathe1.chartographer.repositories;
 
 import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
+
 @Repository
 public interface PicturesRepository extends JpaRepository<Picture, Long> {
+    List<Picture> findAllByStatus(PictureStatus status);
+
+    /**
+     * Pairs of a storage root and the total pixels of the pictures in the given statuses placed on it.
+     */
+    @Query("select p.storageRoot, sum(p.width * p.height) from Picture p where p.storageRoot is not null and p.status in :statuses group by p.storageRoot")
+    List<Object[]> sumPixelsByStorageRoot(@Param("statuses") Collection<PictureStatus> statuses);
 }
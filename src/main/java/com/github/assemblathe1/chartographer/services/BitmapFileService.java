@@ -1,21 +1,47 @@
 package com.github.assemblathe1.chartographer.services;
 
+import com.github.assemblathe1.chartographer.dtos.FragmentRows;
+import com.github.assemblathe1.chartographer.dtos.PictureRegion;
 import com.github.assemblathe1.chartographer.entities.Picture;
-import com.github.assemblathe1.chartographer.exceptions.WritingToDiskException;
+import com.github.assemblathe1.chartographer.exceptions.ValidationException;
+import com.github.assemblathe1.chartographer.metrics.CallCountingInputStream;
+import com.github.assemblathe1.chartographer.metrics.CallCountingOutputStream;
+import com.github.assemblathe1.chartographer.metrics.ChartographerMetrics;
+import lombok.RequiredArgsConstructor;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 @Component
+@RequiredArgsConstructor
 public class BitmapFileService {
+    public static final long UNKNOWN_LENGTH = -1;                                       // length of a body sent without Content-Length
     private static final int BMP_SIZE_HEADER = 54;                                      // total header length, 54 bytes
+    private static final int BMP_MAX_SIZE_HEADER = 4096;                                // longest accepted header of uploaded fragments, incl. V5 header and color masks
     //  private static final int BMP_SIZE_IMAGE_WIDTH = 4;                                  // size of image width field, 4 bytes
 //  private static final int BMP_SIZE_PAYLOAD_LENGTH = 4;                               // size of 'horizontal resolution' field, here: payload length, 4 bytes
 //  private static final int BMP_SIZE_BMPUTIL_MAGIC = 4;                                // size of 'vertical resolution' field, here: payload length, 4 bytes
     private static final int BMP_OFFSET_FILESIZE_BYTES = 2;                             // offset of filesize field, 4 bytes
+    private static final int BMP_OFFSET_IMAGE_DATA = 10;                                // offset of image data offset field, 4 bytes
     private static final int BMP_OFFSET_IMAGE_WIDTH = 18;                               // offset of image width field, 4 bytes
     private static final int BMP_OFFSET_IMAGE_HEIGHT = 22;                              // offset of image height field, 4 bytes
+    private static final int BMP_OFFSET_BITS_PER_PIXEL = 28;                            // offset of bits per pixel field, 2 bytes
+    private static final int BMP_OFFSET_COMPRESSION = 30;                               // offset of compression type field, 4 bytes
     private static final int BMP_OFFSET_IMAGE_DATA_BYTES = 34;                          // 4 bytes
 //  private static final int BMP_OFFSET_PAYLOAD_LENGTH = 38;                            // 4 bytes
 //  private static final int BMP_OFFSET_BMPUTIL_MAGIC = 42;                             // 4 bytes
@@ -40,151 +66,636 @@ public class BitmapFileService {
             /* 50 */ 0x00, 0x00, 0x00, 0x00,                                            // number of important colors, or zero
     };
 
+    @Value("${tiering.tileSize}")
+    private int tieringTileSize;
+    @Value("${encoding.pngCompressionLevel}")
+    private int pngCompressionLevel;
+    @Value("${bands.minPixels}")
+    private long bandsMinPixels;
+    @Value("${bands.rows}")
+    private int bandRows;
+
+    private final MappedCanvasCache mappedCanvasCache;
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final PicturePyramid picturePyramid;
+    private final RowBufferPool rowBufferPool;
+    private final ChartographerMetrics chartographerMetrics;
+    private final ForkJoinPool fragmentBandPool;
+
     public void createPicture(int width, int height, String url) throws IOException {
-        FileOutputStream fileOutputStream = new FileOutputStream(url);
-        long imageBytesWithPadding = getImageBytesLength(width, height);
-        createBMPHeader(width, height, fileOutputStream);
-        if (imageBytesWithPadding > 1024) {
-            byte[] row = new byte[1024];
-            long mod = imageBytesWithPadding % 1024;
-            for (int i = 0; i < imageBytesWithPadding / 1024; i++) {
-                fileOutputStream.write(row, 0, 1024);
+        createBMPFile(width, height, url);
+        for (int level = 1; level <= picturePyramid.getLevelsCount(width, height); level++) {
+            createBMPFile(
+                    picturePyramid.getLevelSideSize(width, level),
+                    picturePyramid.getLevelSideSize(height, level),
+                    picturePyramid.getLevelUrl(url, level)
+            );
+        }
+    }
+
+    public void savePictureFragment(int x, int y, int width, int height, InputStream fragmentStream, Picture picture) throws IOException {
+        savePictureFragment(x, y, width, height, fragmentStream, picture, UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Applies an uploaded fragment to the canvas while its body is read, so only a row or a band of rows is held
+     * in memory. Fragments of {@code bands.minPixels} and more are read in bands of rows, and every band is written
+     * by the band pool while the next one is read. Fragments absorbed by the write-behind buffer are always written
+     * row by row, their tiles are filled by one thread.
+     * <p>
+     * A body whose {@code length} is declared is checked against the header before any row is written. A body
+     * of unknown length that ends early is rejected where it ends, the rows written before stay applied.
+     */
+    public void savePictureFragment(int x, int y, int width, int height, InputStream fragmentStream, Picture picture, long length) throws IOException {
+        CallCountingInputStream callsStream = new CallCountingInputStream(fragmentStream);
+        CountingInputStream inputStream = new CountingInputStream(callsStream);
+        int rowLength = width * 3 + getRowPadding(width);
+        byte[] row = rowBufferPool.acquire(rowLength);
+        int rows = 0;
+        try {
+            boolean bottomUp = readFragmentHeader(width, height, inputStream, row);
+            checkFragmentLength(width, height, inputStream.getByteCount(), length);
+            Canvas canvas = mappedCanvasCache.get(picture);
+            boolean absorbed = writeBehindBuffer.isAbsorbed(width, height);
+            int fromX = Math.max(x, 0);
+            int toX = Math.min(x + width, picture.getWidth());
+
+            if (!absorbed && isBanded(width, height)) {
+                rows = saveBands(x, y, width, height, bottomUp, inputStream, picture, canvas);
+            } else {
+                // Rows are applied as they arrive; the rest of the body is not read once the rows leave the picture
+                for (int i = 0; i < height; i++) {
+                    int j = bottomUp ? height - 1 - i : i;
+                    if (bottomUp ? y + j < 0 : y + j >= picture.getHeight()) break;
+                    if (inputStream.readNBytes(row, 0, rowLength) < rowLength) throw createShortBodyException(width, height);
+                    if (y + j >= 0 && y + j < picture.getHeight()) {
+                        writeBehindBuffer.writeRow(picture, canvas, absorbed, y + j, fromX, row, 3 * (fromX - x), toX - fromX);
+                        rows++;
+                    }
+                }
+            }
+        } finally {
+            rowBufferPool.release(row);
+        }
+        chartographerMetrics.recordFragmentTransfer(ChartographerMetrics.SAVE, inputStream.getByteCount(), rows, callsStream.getCalls());
+    }
+
+    /**
+     * Reads an uploaded fragment into the rows it covers in the picture. A body shorter than the rows of the fragment,
+     * by its declared {@code length} or by the rows actually read, is rejected before anything is written.
+     */
+    public FragmentRows readPictureFragment(int x, int y, int width, int height, InputStream fragmentStream, Picture picture, long length) throws IOException {
+        CallCountingInputStream callsStream = new CallCountingInputStream(fragmentStream);
+        CountingInputStream inputStream = new CountingInputStream(callsStream);
+        int fromX = Math.max(x, 0);
+        int toX = Math.min(x + width, picture.getWidth());
+        int fromY = Math.max(y, 0);
+        int toY = Math.min(y + height, picture.getHeight());
+        int rowLength = 3 * (toX - fromX);
+        int fragmentRowLength = width * 3 + getRowPadding(width);
+        byte[] row = rowBufferPool.acquire(fragmentRowLength);
+        byte[] rows = new byte[rowLength * (toY - fromY)];
+
+        try {
+            boolean bottomUp = readFragmentHeader(width, height, inputStream, row);
+            checkFragmentLength(width, height, inputStream.getByteCount(), length);
+            for (int i = 0; i < height; i++) {
+                int j = bottomUp ? height - 1 - i : i;
+                if (inputStream.readNBytes(row, 0, fragmentRowLength) < fragmentRowLength) throw createShortBodyException(width, height);
+                if (y + j >= 0 && y + j < picture.getHeight()) {
+                    System.arraycopy(row, 3 * (fromX - x), rows, rowLength * (y + j - fromY), rowLength);
+                }
+            }
+        } finally {
+            rowBufferPool.release(row);
+        }
+        chartographerMetrics.recordFragmentTransfer(ChartographerMetrics.SAVE, inputStream.getByteCount(), toY - fromY, callsStream.getCalls());
+        return new FragmentRows(fromX, fromY, toX - fromX, toY - fromY, rows);
+    }
+
+    /**
+     * Reads an uploaded fragment like {@link #readPictureFragment}, but hands the rows it covers in the picture
+     * to {@code consumer} in bands of at most {@code bandRows} rows as they arrive, so only one band is held in memory.
+     * The bands follow the order of the body, bottom-up fragments give their bottom band first. The rows of a band
+     * are only valid until the consumer returns.
+     */
+    public void readPictureFragment(int x, int y, int width, int height, InputStream fragmentStream, Picture picture, long length,
+                                    int bandRows, RowsConsumer consumer) throws IOException {
+        CallCountingInputStream callsStream = new CallCountingInputStream(fragmentStream);
+        CountingInputStream inputStream = new CountingInputStream(callsStream);
+        int fromX = Math.max(x, 0);
+        int toX = Math.min(x + width, picture.getWidth());
+        int fromY = Math.max(y, 0);
+        int toY = Math.min(y + height, picture.getHeight());
+        int rowLength = 3 * (toX - fromX);
+        int fragmentRowLength = width * 3 + getRowPadding(width);
+        byte[] row = rowBufferPool.acquire(fragmentRowLength);
+        byte[] band = new byte[rowLength * Math.min(bandRows, Math.max(toY - fromY, 0))];
+
+        try {
+            boolean bottomUp = readFragmentHeader(width, height, inputStream, row);
+            checkFragmentLength(width, height, inputStream.getByteCount(), length);
+            for (int i = 0; i < height; i++) {
+                int j = bottomUp ? height - 1 - i : i;
+                if (inputStream.readNBytes(row, 0, fragmentRowLength) < fragmentRowLength) throw createShortBodyException(width, height);
+                if (y + j < fromY || y + j >= toY) continue;
+                int bandIndex = (bottomUp ? toY - 1 - (y + j) : y + j - fromY) / bandRows;
+                int bandFromY = bottomUp ? Math.max(fromY, toY - (bandIndex + 1) * bandRows) : fromY + bandIndex * bandRows;
+                int bandToY = bottomUp ? toY - bandIndex * bandRows : Math.min(toY, fromY + (bandIndex + 1) * bandRows);
+                System.arraycopy(row, 3 * (fromX - x), band, rowLength * (y + j - bandFromY), rowLength);
+                // The last row of a band to arrive is its top one for bottom-up fragments
+                if (y + j == (bottomUp ? bandFromY : bandToY - 1)) {
+                    int bandLength = rowLength * (bandToY - bandFromY);
+                    consumer.accept(new FragmentRows(fromX, bandFromY, toX - fromX, bandToY - bandFromY,
+                            bandLength == band.length ? band : Arrays.copyOf(band, bandLength)));
+                }
+            }
+        } finally {
+            rowBufferPool.release(row);
+        }
+        chartographerMetrics.recordFragmentTransfer(ChartographerMetrics.SAVE, inputStream.getByteCount(), toY - fromY, callsStream.getCalls());
+    }
+
+    /**
+     * Writes rows read by {@link #readPictureFragment}. Small fragments are absorbed by the write-behind buffer.
+     */
+    public void writePictureRows(FragmentRows fragmentRows, Picture picture) throws IOException {
+        if (fragmentRows.getHeight() == 0) return;
+        Canvas canvas = mappedCanvasCache.get(picture);
+        boolean absorbed = writeBehindBuffer.isAbsorbed(fragmentRows.getWidth(), fragmentRows.getHeight());
+        int rowLength = 3 * fragmentRows.getWidth();
+        for (int i = 0; i < fragmentRows.getHeight(); i++) {
+            writeBehindBuffer.writeRow(picture, canvas, absorbed, fragmentRows.getY() + i, fragmentRows.getX(),
+                    fragmentRows.getRows(), rowLength * i, fragmentRows.getWidth());
+        }
+    }
+
+    public void updatePictureLevels(int x, int y, int width, int height, Picture picture) throws IOException {
+        picturePyramid.update(picture, x, y, width, height);
+    }
+
+    public void getPictureFragment(int x, int y, int width, int height, Picture picture, int level, OutputStream outputStream) throws IOException {
+        getPictureFragment(x, y, width, height, picture, level, outputStream, PictureRegionLocks.UNLOCKED);
+    }
+
+    /**
+     * Streams the fragment as a BMP, bottom-up in strips of as many rows as the row buffer holds. Every strip is
+     * rendered while {@code rowsLock} holds its rows and written to the response once they are released, so a slow
+     * client never keeps writers of the picture waiting. A fragment as wide as the picture has the row layout of the
+     * canvas file, so runs of its rows without buffered tiles are copied from the mapping in one go.
+     * Other fragments of {@code bands.minPixels} and more are rendered in bands of rows on the band pool.
+     */
+    public void getPictureFragment(int x, int y, int width, int height, Picture picture, int level, OutputStream fragmentStream,
+                                   PictureRegionLocks.RowsLock rowsLock) throws IOException {
+        CallCountingOutputStream outputStream = new CallCountingOutputStream(fragmentStream);
+        int rows = writePictureFragment(x, y, width, height, picture, level, outputStream, rowsLock);
+        outputStream.flush();
+        chartographerMetrics.recordFragmentTransfer(ChartographerMetrics.GET, getBMPFileLength(width, height), rows, outputStream.getCalls());
+    }
+
+    /**
+     * Streams the fragment like {@link #getPictureFragment}, but neither flushes the stream nor records the transfer,
+     * so that it can be one part of a bigger response.
+     *
+     * @return the number of canvas row reads
+     */
+    public int writePictureFragment(int x, int y, int width, int height, Picture picture, int level, OutputStream outputStream,
+                                    PictureRegionLocks.RowsLock rowsLock) throws IOException {
+        Picture levelPicture = picturePyramid.getLevel(picture, level);
+        int rowLength = width * 3 + getRowPadding(width);
+        boolean fullWidth = x == 0 && width == levelPicture.getWidth();
+        byte[] strip = rowBufferPool.acquire(rowLength);
+        int stripRows = strip.length / rowLength;
+        int rows = 0;
+
+        try {
+            createBMPHeader(width, height, strip);
+            outputStream.write(strip, 0, BMP_SIZE_HEADER);
+            if (!fullWidth && isBanded(width, height)) {
+                rows = writeBands(x, y, width, height, picture, level, levelPicture, outputStream, rowsLock);
+            } else {
+                for (int toRow = height; toRow > 0; toRow -= stripRows) {
+                    int fromRow = Math.max(toRow - stripRows, 0);
+                    // The canvas is looked up under every strip lock, the picture may be compressed in between
+                    try (PictureRegionLocks.RegionLock ignored = rowsLock.lockRows(y + fromRow, toRow - fromRow)) {
+                        Canvas canvas = mappedCanvasCache.get(levelPicture);
+                        rows += renderRows(x, y, width, fromRow, toRow, picture, level, levelPicture, canvas, fullWidth, strip);
+                    }
+                    outputStream.write(strip, 0, (toRow - fromRow) * rowLength);
+                }
             }
-            fileOutputStream.write(new byte[(int) mod], 0, (int) mod);
-        } else fileOutputStream.write(new byte[(int) imageBytesWithPadding], 0, (int) imageBytesWithPadding);
-        fileOutputStream.close();
-    }
-
-    public void savePictureFragment(int x, int y, int width, int height, MultipartFile pictureFragment, Picture picture) throws IOException {
-        File originalImage = checkFileExistsOrThrowException(picture.getUrl());
-        byte[] buffer = new byte[width * 3];
-        int offset = getOffset(x);
-        int inputStreamRowPadding = getRowPadding(width);
-        int randomAccessFileRowPadding = getRowPadding(picture.getWidth());
-        int newBufferLength = getNewBufferLength(x, width, picture, offset);
-        long availableInputStreamBuffer = getAvailableInputStreamBuffer(x, y, width, picture, inputStreamRowPadding);
-        long startOffsetRandomAccessFile = getStartOffsetRandomAccessFile(x, y, width, height, picture, randomAccessFileRowPadding);
-        long startOffsetInputStream = y + height > picture.getHeight()
-                ? countDefaultStartOffsetRandomAccessFile(0, -y, -height, width, -picture.getHeight(), inputStreamRowPadding)
-                : 54;
-
-        InputStream inputStream = pictureFragment.getInputStream();
-        inputStream.skip(startOffsetInputStream);
-        RandomAccessFile randomAccessFile = new RandomAccessFile(originalImage, "rw");
-        while (inputStream.available() > availableInputStreamBuffer) {
-            inputStream.read(buffer);
-            inputStream.skip(inputStreamRowPadding);
-            randomAccessFile.seek(startOffsetRandomAccessFile);
-            randomAccessFile.write(buffer, offset, newBufferLength - offset);
-            startOffsetRandomAccessFile += picture.getWidth() * 3L + randomAccessFileRowPadding;
-        }
-        randomAccessFile.close();
-        inputStream.close();
-    }
-
-    public ByteArrayOutputStream getPictureFragment(int x, int y, int width, int height, Picture picture) throws IOException {
-        File originalImage = checkFileExistsOrThrowException(picture.getUrl());
-        RandomAccessFile randomAccessFile = new RandomAccessFile(originalImage, "r");
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        createBMPHeader(width, height, byteArrayOutputStream);
-
-        int offset = getOffset(x);
-        int outputStreamRowPadding = getRowPadding(width);
-        int randomAccessFileRowPadding = getRowPadding(picture.getWidth());
-        int randomAccessFileMeaningfulHeight = (y + height) > picture.getHeight() ? picture.getHeight() - y : height;
-        int randomAccessFileBeforeMeaningfulHeight = (y + height) > picture.getHeight() ? height - picture.getHeight() + y : 0;
-        int newBufferLength = getNewBufferLength(x, width, picture, offset);
-        long startOffsetRandomAccessFile = getStartOffsetRandomAccessFile(x, y, width, height, picture, randomAccessFileRowPadding);
-
-        for (int j = 0; j < randomAccessFileBeforeMeaningfulHeight; j++) {
-            byte[] buffer = new byte[width * 3 + outputStreamRowPadding];
-            byteArrayOutputStream.write(buffer);
-        }
-
-        for (int i = 0; i < randomAccessFileMeaningfulHeight; i++) {
-            byte[] buffer = new byte[width * 3];
-            randomAccessFile.seek(startOffsetRandomAccessFile);
-            randomAccessFile.read(buffer, offset, newBufferLength - offset);
-            byteArrayOutputStream.write(buffer);
-            byte[] bufferOutputStreamRowPadding = new byte[outputStreamRowPadding];
-            byteArrayOutputStream.write(bufferOutputStreamRowPadding);
-            startOffsetRandomAccessFile += 3L * picture.getWidth() + randomAccessFileRowPadding;
-        }
-
-        randomAccessFile.close();
-        byteArrayOutputStream.close();
-        return byteArrayOutputStream;
-    }
-
-    public boolean deletePicture(Picture picture) {
-        return checkFileExistsOrThrowException(picture.getUrl()).delete();
-    }
-
-    private File checkFileExistsOrThrowException(String url) {
-        File file = new File(url);
-        if (!file.exists()) throw new WritingToDiskException("Internal Server Error");
-        return file;
-    }
-
-    private void createBMPHeader(int width, int height, OutputStream outputStream) throws IOException {
+        } finally {
+            rowBufferPool.release(strip);
+        }
+        return rows;
+    }
+
+    public void getPngPictureFragment(int x, int y, int width, int height, Picture picture, int level, OutputStream outputStream) throws IOException {
+        getPngPictureFragment(x, y, width, height, picture, level, outputStream, PictureRegionLocks.UNLOCKED);
+    }
+
+    /**
+     * Streams the fragment as a PNG, encoding the canvas rows top-down. Rows are read in strips of as many rows as the
+     * row buffer holds, every strip under {@code rowsLock}, and encoded once its rows are released.
+     */
+    public void getPngPictureFragment(int x, int y, int width, int height, Picture picture, int level, OutputStream outputStream,
+                                      PictureRegionLocks.RowsLock rowsLock) throws IOException {
+        Picture levelPicture = picturePyramid.getLevel(picture, level);
+        CallCountingOutputStream callsStream = new CallCountingOutputStream(outputStream);
+        CountingOutputStream countingStream = new CountingOutputStream(callsStream);
+        PngEncoder pngEncoder = new PngEncoder(countingStream, width, height, pngCompressionLevel);
+
+        int fromX = Math.max(x, 0);
+        int toX = Math.min(x + width, levelPicture.getWidth());
+        int rowLength = width * 3;
+        byte[] strip = rowBufferPool.acquire(rowLength);
+        int stripRows = strip.length / rowLength;
+        int rows = 0;
+
+        try {
+            for (int fromRow = 0; fromRow < height; fromRow += stripRows) {
+                int toRow = Math.min(fromRow + stripRows, height);
+                try (PictureRegionLocks.RegionLock ignored = rowsLock.lockRows(y + fromRow, toRow - fromRow)) {
+                    Canvas canvas = mappedCanvasCache.get(levelPicture);
+                    for (int j = fromRow; j < toRow; j++) {
+                        int offset = (j - fromRow) * rowLength;
+                        if (y + j < 0 || y + j >= levelPicture.getHeight()) {
+                            Arrays.fill(strip, offset, offset + rowLength, (byte) 0);
+                            continue;
+                        }
+                        Arrays.fill(strip, offset, offset + 3 * (fromX - x), (byte) 0);
+                        Arrays.fill(strip, offset + 3 * (toX - x), offset + rowLength, (byte) 0);
+                        canvas.readRow(y + j, fromX, strip, offset + 3 * (fromX - x), toX - fromX);
+                        if (level == 0) writeBehindBuffer.overlayRow(picture, y + j, fromX, strip, offset + 3 * (fromX - x), toX - fromX);
+                        rows++;
+                    }
+                }
+                for (int j = fromRow; j < toRow; j++) pngEncoder.writeRow(strip, (j - fromRow) * rowLength);
+            }
+        } finally {
+            rowBufferPool.release(strip);
+        }
+        pngEncoder.finish();
+        countingStream.flush();
+        chartographerMetrics.recordFragmentTransfer(ChartographerMetrics.GET, countingStream.getByteCount(), rows, callsStream.getCalls());
+    }
+
+    /**
+     * Renders every region whose fragment is still {@code null} into a new encoded BMP.
+     * Canvas rows are visited once, in file order, and on every row the overlapping x ranges of the regions
+     * are merged, so a pixel shared by several regions is read only once.
+     *
+     * @return the number of canvas row reads
+     */
+    public int getPictureFragments(List<PictureRegion> regions, Picture picture, int level, byte[][] fragments) throws IOException {
+        Picture levelPicture = picturePyramid.getLevel(picture, level);
+        Canvas canvas = mappedCanvasCache.get(levelPicture);
+        List<PictureRegion> rendered = new ArrayList<>();
+        List<byte[]> renderedFragments = new ArrayList<>();
+        for (int i = 0; i < regions.size(); i++) {
+            if (fragments[i] != null) continue;
+            PictureRegion region = regions.get(i);
+            fragments[i] = new byte[(int) getBMPFileLength(region.getWidth(), region.getHeight())];
+            createBMPHeader(region.getWidth(), region.getHeight(), fragments[i]);
+            rendered.add(region);
+            renderedFragments.add(fragments[i]);
+        }
+        if (rendered.isEmpty()) return 0;
+
+        List<Integer> byX = new ArrayList<>();
+        for (int i = 0; i < rendered.size(); i++) byX.add(i);
+        byX.sort(Comparator.comparingInt(i -> rendered.get(i).getX()));
+        int fromY = Math.max(0, rendered.stream().mapToInt(PictureRegion::getY).min().getAsInt());
+        int toY = Math.min(levelPicture.getHeight(), rendered.stream().mapToInt(region -> region.getY() + region.getHeight()).max().getAsInt());
+        byte[] row = rowBufferPool.acquire(3 * levelPicture.getWidth());
+        int rows = 0;
+
+        try {
+            for (int y = toY - 1; y >= fromY; y--) {
+                int spanFromX = -1;
+                int spanToX = -1;
+                for (int i = 0; i <= byX.size(); i++) {
+                    PictureRegion region = i < byX.size() ? rendered.get(byX.get(i)) : null;
+                    if (region != null && (y < region.getY() || y >= region.getY() + region.getHeight())) continue;
+                    int fromX = region == null ? Integer.MAX_VALUE : Math.max(region.getX(), 0);
+                    if (spanToX > spanFromX && fromX > spanToX) {
+                        canvas.readRow(y, spanFromX, row, 3 * spanFromX, spanToX - spanFromX);
+                        if (level == 0) writeBehindBuffer.overlayRow(picture, y, spanFromX, row, 3 * spanFromX, spanToX - spanFromX);
+                        rows++;
+                        spanFromX = -1;
+                        spanToX = -1;
+                    }
+                    if (region == null) break;
+                    int toX = Math.min(region.getX() + region.getWidth(), levelPicture.getWidth());
+                    if (spanToX <= spanFromX) spanFromX = fromX;
+                    spanToX = Math.max(spanToX, toX);
+                }
+                for (int i = 0; i < rendered.size(); i++) {
+                    PictureRegion region = rendered.get(i);
+                    if (y < region.getY() || y >= region.getY() + region.getHeight()) continue;
+                    int fromX = Math.max(region.getX(), 0);
+                    int toX = Math.min(region.getX() + region.getWidth(), levelPicture.getWidth());
+                    long rowOffset = BMP_SIZE_HEADER + (long) (region.getY() + region.getHeight() - 1 - y) * (3 * region.getWidth() + getRowPadding(region.getWidth()));
+                    System.arraycopy(row, 3 * fromX, renderedFragments.get(i), (int) rowOffset + 3 * (fromX - region.getX()), 3 * (toX - fromX));
+                }
+            }
+        } finally {
+            rowBufferPool.release(row);
+        }
+        return rows;
+    }
+
+    public static long getBMPFileLength(int width, int height) {
+        return BMP_SIZE_HEADER + getImageBytesLength(width, height);
+    }
+
+    public boolean isCompressed(Picture picture) {
+        return mappedCanvasCache.isCompressed(picture);
+    }
+
+    /**
+     * Converts the canvas and its levels to compressed tiles. The caller must keep writers out of the whole picture.
+     */
+    public void compressPicture(Picture picture) throws IOException {
+        for (int level = 0; level <= picturePyramid.getAvailableLevelsCount(picture); level++) {
+            Picture levelPicture = picturePyramid.getLevel(picture, level);
+            if (mappedCanvasCache.isCompressed(levelPicture)) continue;
+            Path compressedPath = Path.of(CompressedCanvas.getUrl(levelPicture.getUrl()));
+            Path temporaryPath = Path.of(compressedPath + ".tmp");
+            CompressedCanvas.write(mappedCanvasCache.get(levelPicture), temporaryPath, tieringTileSize);
+            Files.move(temporaryPath, compressedPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            mappedCanvasCache.evictAndDelete(levelPicture.getUrl(), Path.of(levelPicture.getUrl()));
+        }
+    }
+
+    /**
+     * Restores the raw BMP files of a compressed picture. The caller must hold the write lock of the whole picture.
+     */
+    public void decompressPicture(Picture picture) throws IOException {
+        for (int level = 0; level <= picturePyramid.getAvailableLevelsCount(picture); level++) {
+            Picture levelPicture = picturePyramid.getLevel(picture, level);
+            if (!mappedCanvasCache.isCompressed(levelPicture)) continue;
+            CompressedCanvas compressedCanvas = (CompressedCanvas) mappedCanvasCache.get(levelPicture);
+            String temporaryUrl = levelPicture.getUrl() + ".tmp";
+            createBMPFile(levelPicture.getWidth(), levelPicture.getHeight(), temporaryUrl);
+            try (MappedCanvas canvas = mappedCanvasCache.map(Path.of(temporaryUrl), levelPicture.getWidth(), levelPicture.getHeight())) {
+                compressedCanvas.copyTo(canvas);
+                canvas.force();
+            }
+            Files.move(Path.of(temporaryUrl), Path.of(levelPicture.getUrl()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            mappedCanvasCache.evictAndDelete(levelPicture.getUrl(), Path.of(CompressedCanvas.getUrl(levelPicture.getUrl())));
+        }
+    }
+
+    /**
+     * Deletes whichever files of the picture exist, for a canvas that was never completely allocated.
+     */
+    public void deletePictureFiles(Picture picture) {
+        evictPicture(picture);
+        getPictureFiles(picture).forEach(path -> path.toFile().delete());
+    }
+
+    /**
+     * Closes the cached canvases of the picture and its levels. The caller must keep every request out of the picture.
+     */
+    public void evictPicture(Picture picture) {
+        mappedCanvasCache.evict(picture.getUrl());
+        for (int level = 1; level <= picturePyramid.getLevelsCount(picture.getWidth(), picture.getHeight()); level++) {
+            mappedCanvasCache.evict(picturePyramid.getLevelUrl(picture.getUrl(), level));
+        }
+    }
+
+    /**
+     * Writes the raw files of the picture and its levels to the device, including pages changed through mappings.
+     */
+    public void forcePicture(Picture picture) throws IOException {
+        for (int level = 0; level <= picturePyramid.getLevelsCount(picture.getWidth(), picture.getHeight()); level++) {
+            Path path = Path.of(level == 0 ? picture.getUrl() : picturePyramid.getLevelUrl(picture.getUrl(), level));
+            if (!Files.exists(path)) continue;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Every file the picture may have on disk: the canvas, its levels, their compressed tiles and interrupted conversions.
+     */
+    public List<Path> getPictureFiles(Picture picture) {
+        List<Path> files = new ArrayList<>();
+        for (int level = 0; level <= picturePyramid.getLevelsCount(picture.getWidth(), picture.getHeight()); level++) {
+            String levelUrl = level == 0 ? picture.getUrl() : picturePyramid.getLevelUrl(picture.getUrl(), level);
+            String compressedUrl = CompressedCanvas.getUrl(levelUrl);
+            files.add(Path.of(levelUrl));
+            files.add(Path.of(compressedUrl));
+            files.add(Path.of(levelUrl + ".tmp"));
+            files.add(Path.of(compressedUrl + ".tmp"));
+        }
+        return files;
+    }
+
+    private void createBMPFile(int width, int height, String url) throws IOException {
+        mappedCanvasCache.evict(url);
+        byte[] header = rowBufferPool.acquire(BMP_SIZE_HEADER);
+        try (FileChannel channel = FileChannel.open(Path.of(url), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            createBMPHeader(width, height, header);
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header, 0, BMP_SIZE_HEADER);
+            while (headerBuffer.hasRemaining()) channel.write(headerBuffer, headerBuffer.position());
+            // Image data is left as a hole in a sparse file, the file system reads it back as zeros (black pixels)
+            long length = getBMPFileLength(width, height);
+            if (length > BMP_SIZE_HEADER) channel.write(ByteBuffer.wrap(rowBufferPool.getZeros(1), 0, 1), length - 1);
+        } finally {
+            rowBufferPool.release(header);
+        }
+    }
+
+    /**
+     * Reads and checks the BMP header of an uploaded fragment, using {@code header} as scratch space.
+     */
+    private boolean readFragmentHeader(int width, int height, InputStream inputStream, byte[] header) throws IOException {
+        if (inputStream.readNBytes(header, 0, BMP_SIZE_HEADER) < BMP_SIZE_HEADER || header[0] != 0x42 || header[1] != 0x4d) {
+            throw new ValidationException(List.of("Fragment is not a BMP image"));
+        }
+        List<String> errors = new ArrayList<>();
+        long imageDataOffset = readIntLE(header, BMP_OFFSET_IMAGE_DATA);
+        int fragmentHeight = (int) readIntLE(header, BMP_OFFSET_IMAGE_HEIGHT);
+        if (imageDataOffset < BMP_SIZE_HEADER || imageDataOffset > BMP_MAX_SIZE_HEADER) errors.add("Fragment has unsupported BMP header");
+        if ((header[BMP_OFFSET_BITS_PER_PIXEL] & 0xff) != 24 || readIntLE(header, BMP_OFFSET_COMPRESSION) != 0) {
+            errors.add("Fragment must be an uncompressed 24-bit BMP image");
+        }
+        if (readIntLE(header, BMP_OFFSET_IMAGE_WIDTH) != width || Math.abs(fragmentHeight) != height) {
+            errors.add("Fragment size does not match width " + width + " and height " + height);
+        }
+        if (!errors.isEmpty()) throw new ValidationException(errors);
+
+        inputStream.readNBytes(header, 0, (int) imageDataOffset - BMP_SIZE_HEADER);
+        return fragmentHeight > 0;
+    }
+
+    private void createBMPHeader(int width, int height, byte[] header) {
         long imageBytesWithPadding = getImageBytesLength(width, height);
         long filesizeBytes = imageBytesWithPadding + BMP_SIZE_HEADER;
-        byte[] header = BMP_HEADER.clone();
+        System.arraycopy(BMP_HEADER, 0, header, 0, BMP_SIZE_HEADER);
         writeIntLE(header, BMP_OFFSET_FILESIZE_BYTES, filesizeBytes);
         writeIntLE(header, BMP_OFFSET_IMAGE_WIDTH, width);
         writeIntLE(header, BMP_OFFSET_IMAGE_HEIGHT, height);
         writeIntLE(header, BMP_OFFSET_IMAGE_DATA_BYTES, filesizeBytes);
-        outputStream.write(header, 0, header.length);
     }
 
-    private long getStartOffsetRandomAccessFile(int x, int y, int width, int height, Picture picture, int randomAccessFileRowPadding) {
-        return x + width > picture.getWidth() && y + height > picture.getHeight()
-                ? x < 0 ? 54 : 54 + 3L * x
-                : getStartOffsetRafIfFragmentDoNotCrossAllPicture(x, y, width, height, picture, randomAccessFileRowPadding);
+    /**
+     * Renders the rows of a large fragment in bands on the band pool, {@code bands.parallelism} bands at a time, and
+     * writes the bands in the bottom-up row order of the BMP. The rows of every window of bands are locked by the calling
+     * thread while the pool renders them and released before the window is written; band tasks never wait for a lock.
+     */
+    private int writeBands(int x, int y, int width, int height, Picture picture, int level, Picture levelPicture,
+                           OutputStream outputStream, PictureRegionLocks.RowsLock rowsLock) throws IOException {
+        int rowLength = width * 3 + getRowPadding(width);
+        int bandsCount = (height + bandRows - 1) / bandRows;
+        int window = Math.min(fragmentBandPool.getParallelism(), bandsCount);
+        byte[][] buffers = new byte[window][];
+        List<ForkJoinTask<Integer>> tasks = new ArrayList<>(window);
+        int rows = 0;
+        for (int firstBand = 0; firstBand < bandsCount; firstBand += window) {
+            int windowBands = Math.min(window, bandsCount - firstBand);
+            // Bands are counted from the bottom row of the fragment, the window covers its rows [fromRow, toRow)
+            int toRow = height - firstBand * bandRows;
+            int fromRow = Math.max(toRow - windowBands * bandRows, 0);
+            try (PictureRegionLocks.RegionLock ignored = rowsLock.lockRows(y + fromRow, toRow - fromRow)) {
+                Canvas canvas = mappedCanvasCache.get(levelPicture);
+                tasks.clear();
+                try {
+                    for (int band = 0; band < windowBands; band++) {
+                        if (buffers[band] == null) buffers[band] = new byte[bandRows * rowLength];
+                        byte[] buffer = buffers[band];
+                        int bandToRow = toRow - band * bandRows;
+                        int bandFromRow = Math.max(bandToRow - bandRows, 0);
+                        tasks.add(fragmentBandPool.submit(() -> renderRows(x, y, width, bandFromRow, bandToRow, picture, level, levelPicture, canvas, false, buffer)));
+                    }
+                    for (ForkJoinTask<Integer> task : tasks) rows += task.join();
+                } finally {
+                    // No band may still be reading the canvas once its rows are unlocked
+                    tasks.forEach(ForkJoinTask::quietlyJoin);
+                }
+            }
+            for (int band = 0; band < windowBands; band++) {
+                int bandToRow = toRow - band * bandRows;
+                outputStream.write(buffers[band], 0, (bandToRow - Math.max(bandToRow - bandRows, 0)) * rowLength);
+            }
+        }
+        return rows;
     }
 
-    private int getRowPadding(int width) {
-        return width * 3 % 4 == 0 ? 0 : 4 - (width * 3 % 4);
+    /**
+     * Renders the fragment rows {@code [fromRow, toRow)} into the buffer bottom-up, as they follow each other in a BMP.
+     * Only the pixels inside the picture are read, the parts outside it and the padding are black.
+     *
+     * @return the number of canvas row reads
+     */
+    private int renderRows(int x, int y, int width, int fromRow, int toRow, Picture picture, int level, Picture levelPicture,
+                           Canvas canvas, boolean fullWidth, byte[] buffer) {
+        int fromX = Math.max(x, 0);
+        int toX = Math.min(x + width, levelPicture.getWidth());
+        int rowLength = width * 3 + getRowPadding(width);
+        int rows = 0;
+        for (int j = toRow - 1; j >= fromRow; j--) {
+            int offset = (toRow - 1 - j) * rowLength;
+            if (y + j < 0 || y + j >= levelPicture.getHeight()) {
+                Arrays.fill(buffer, offset, offset + rowLength, (byte) 0);
+                continue;
+            }
+            if (fullWidth && canvas instanceof MappedCanvas && !isBuffered(picture, level, y + j)) {
+                int spanFromY = y + j;
+                while (spanFromY > Math.max(y + fromRow, 0) && !isBuffered(picture, level, spanFromY - 1)) spanFromY--;
+                ((MappedCanvas) canvas).readRows(spanFromY, y + j + 1 - spanFromY, buffer, offset);
+                rows += y + j + 1 - spanFromY;
+                j = spanFromY - y;
+                continue;
+            }
+            Arrays.fill(buffer, offset, offset + 3 * (fromX - x), (byte) 0);
+            Arrays.fill(buffer, offset + 3 * (toX - x), offset + rowLength, (byte) 0);
+            canvas.readRow(y + j, fromX, buffer, offset + 3 * (fromX - x), toX - fromX);
+            if (level == 0) writeBehindBuffer.overlayRow(picture, y + j, fromX, buffer, offset + 3 * (fromX - x), toX - fromX);
+            rows++;
+        }
+        return rows;
     }
 
-    private long getAvailableInputStreamBuffer(int x, int y, int width, Picture picture, long inputStreamRowPadding) {
-        return y < 0
-                ? x + width > picture.getWidth()
-                    ? countAvailableBufferIfFragmentWidthMorePictureWidth(y, width)
-                    : countAvailableBufferIfFragmentWidthMorePictureWidth(y, width) + inputStreamRowPadding * Math.abs(y)
-                : 0;
+    /**
+     * Reads the rows of a large upload band by band and lets the band pool write every band while the next one
+     * is read. As in the row by row loop, the body is read only up to the row that leaves the picture.
+     */
+    private int saveBands(int x, int y, int width, int height, boolean bottomUp, InputStream inputStream,
+                          Picture picture, Canvas canvas) throws IOException {
+        int rowLength = width * 3 + getRowPadding(width);
+        int fromX = Math.max(x, 0);
+        int toX = Math.min(x + width, picture.getWidth());
+        int rowsToRead = Math.max(0, Math.min(height, bottomUp ? height + y : picture.getHeight() - y));
+        int window = fragmentBandPool.getParallelism();
+        byte[][] buffers = new byte[window][];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        int rows = 0;
+        try {
+            for (int band = 0; band * bandRows < rowsToRead; band++) {
+                int slot = band % window;
+                if (band >= window) tasks.get(band - window).join();
+                if (buffers[slot] == null) buffers[slot] = new byte[bandRows * rowLength];
+                byte[] buffer = buffers[slot];
+                int firstRow = band * bandRows;
+                int expectedRows = Math.min(bandRows, rowsToRead - firstRow);
+                int bandHeight = inputStream.readNBytes(buffer, 0, expectedRows * rowLength) / rowLength;
+                if (bandHeight < expectedRows) throw createShortBodyException(width, height);
+                tasks.add(fragmentBandPool.submit(() -> {
+                    for (int i = firstRow; i < firstRow + bandHeight; i++) {
+                        int j = bottomUp ? height - 1 - i : i;
+                        if (y + j < 0 || y + j >= picture.getHeight()) continue;
+                        writeBehindBuffer.writeRow(picture, canvas, false, y + j, fromX, buffer, (i - firstRow) * rowLength + 3 * (fromX - x), toX - fromX);
+                    }
+                }));
+                for (int i = firstRow; i < firstRow + bandHeight; i++) {
+                    int j = bottomUp ? height - 1 - i : i;
+                    if (y + j >= 0 && y + j < picture.getHeight()) rows++;
+                }
+            }
+            tasks.forEach(ForkJoinTask::join);
+        } finally {
+            // The caller releases the region lock on return, no band may still be writing the canvas then
+            tasks.forEach(ForkJoinTask::quietlyJoin);
+        }
+        return rows;
     }
 
-    private long getImageBytesLength(int width, int height) {
-        return 3L * width * height + height * getRowPadding(width);
+    /**
+     * Rejects a body whose declared length cannot hold the rows of the fragment after a header of {@code headerLength} bytes.
+     */
+    private static void checkFragmentLength(int width, int height, long headerLength, long length) {
+        if (length != UNKNOWN_LENGTH && length < headerLength + getImageBytesLength(width, height)) throw createShortBodyException(width, height);
     }
 
-    private int getOffset(int x) {
-        return x < 0 ? Math.abs(x) * 3 : 0;
+    private static ValidationException createShortBodyException(int width, int height) {
+        return new ValidationException(List.of("Fragment body is shorter than width " + width + " and height " + height));
     }
 
-    private int getNewBufferLength(int x, int width, Picture picture, int offset) {
-        return x + width > picture.getWidth()
-                ? x < 0 ? 3 * picture.getWidth() + offset : 3 * (picture.getWidth() - x)
-                : 3 * width;
+    private boolean isBanded(int width, int height) {
+        return (long) width * height >= bandsMinPixels;
     }
 
-    private long getStartOffsetRafIfFragmentDoNotCrossAllPicture(int x, int y, int width, int height, Picture picture, long randomAccessFileRowPadding) {
-        return x < 0
-                ? y + height > picture.getHeight()
-                    ? 54L
-                    : countDefaultStartOffsetRandomAccessFile(x, y, height, picture.getWidth(), picture.getHeight(), randomAccessFileRowPadding) - 3L * x
-                : x + width <= picture.getWidth() && y + height > picture.getHeight()
-                    ? 54 + 3L * x
-                    : countDefaultStartOffsetRandomAccessFile(x, y, height, picture.getWidth(), picture.getHeight(), randomAccessFileRowPadding);
+    private boolean isBuffered(Picture picture, int level, int y) {
+        return level == 0 && writeBehindBuffer.hasDirtyTiles(picture, y);
     }
 
-    private long countAvailableBufferIfFragmentWidthMorePictureWidth(int y, int width) {
-        return 54 + 3L * width * Math.abs(y);
+    private static int getRowPadding(int width) {
+        return width * 3 % 4 == 0 ? 0 : 4 - (width * 3 % 4);
+    }
+
+    private static long getImageBytesLength(int width, int height) {
+        return 3L * width * height + height * getRowPadding(width);
     }
 
-    private long countDefaultStartOffsetRandomAccessFile(int x, int y, int height, int pictureWidth, int pictureHeight, long randomAccessFileRowPadding) {
-        return 54 + 3L * pictureWidth * (pictureHeight - height - y) + randomAccessFileRowPadding * (pictureHeight - height - y) + 3L * x;
+    private long readIntLE(byte[] bytes, int startOffset) {
+        return (bytes[startOffset] & 0xff)
+                | (bytes[startOffset + 1] & 0xff) << 8
+                | (bytes[startOffset + 2] & 0xff) << 16
+                | (long) bytes[startOffset + 3] << 24;
     }
 
     private void writeIntLE(byte[] bytes, int startOffset, long value) {
@@ -193,4 +704,9 @@ public class BitmapFileService {
         bytes[startOffset + 2] = (byte) (value >>> 16);
         bytes[startOffset + 3] = (byte) (value >>> 24);
     }
+
+    @FunctionalInterface
+    public interface RowsConsumer {
+        void accept(FragmentRows fragmentRows) throws IOException;
+    }
 }
@@ -0,0 +1,18 @@
+package com.github.assemblathe1.chartographer.services;
+
+import java.io.Closeable;
+
+/**
+ * Pixel rows of a stored picture, addressed top-down as in the HTTP API. Every pixel is 3 bytes in BGR order.
+ */
+public interface Canvas extends Closeable {
+    int getWidth();
+
+    int getHeight();
+
+    void readRow(int y, int x, byte[] destination, int destinationOffset, int pixels);
+
+    void writeRow(int y, int x, byte[] source, int sourceOffset, int pixels);
+
+    void force();
+}
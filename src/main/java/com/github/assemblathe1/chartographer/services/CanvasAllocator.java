@@ -0,0 +1,147 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.exceptions.PictureNotReadyException;
+import com.github.assemblathe1.chartographer.exceptions.WritingToDiskException;
+import com.github.assemblathe1.chartographer.metrics.ChartographerMetrics;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocates the canvases of new pictures in the background, so creation returns as soon as the row is saved.
+ * <p>
+ * A picture stays PENDING until its files are written and turns READY or FAILED afterwards. Requests to a pending
+ * picture never wait for its allocation on the request thread, they are told to retry later at once. Pictures left
+ * PENDING by a restart are allocated again once the application is ready.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CanvasAllocator {
+    @Value("${allocation.poolSize}")
+    private int poolSize;
+    @Value("${allocation.maxWait}")
+    private long maxWait;
+
+    private final PicturesRepository picturesRepository;
+    private final BitmapFileService bitmapFileService;
+    private final PictureMetadataCache pictureMetadataCache;
+    private final ChartographerMetrics chartographerMetrics;
+
+    private final ConcurrentMap<Long, CompletableFuture<Picture>> allocations = new ConcurrentHashMap<>();
+    private ExecutorService allocator;
+
+    @PostConstruct
+    public void startAllocator() {
+        AtomicInteger threads = new AtomicInteger();
+        allocator = Executors.newFixedThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "canvas-allocation-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        allocator.shutdown();
+        allocator.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void allocatePendingPictures() {
+        picturesRepository.findAllByStatus(PictureStatus.PENDING).forEach(this::allocate);
+    }
+
+    public void allocate(Picture picture) {
+        CompletableFuture<Picture> allocation = new CompletableFuture<>();
+        allocations.put(picture.getId(), allocation);
+        allocator.execute(() -> {
+            Picture allocatedPicture = new Picture(picture.getId(), picture.getUrl(), picture.getWidth(), picture.getHeight(), PictureStatus.READY, picture.getStorageRoot());
+            Timer.Sample sample = chartographerMetrics.startTimer();
+            try {
+                bitmapFileService.createPicture(picture.getWidth(), picture.getHeight(), picture.getUrl());
+            } catch (IOException | RuntimeException e) {
+                log.error("Unable to allocate picture " + picture.getId(), e);
+                bitmapFileService.deletePictureFiles(picture);
+                allocatedPicture.setStatus(PictureStatus.FAILED);
+            } finally {
+                chartographerMetrics.stopCanvasCreationTimer(sample, picture.getWidth(), picture.getHeight(), allocatedPicture.getStatus());
+            }
+            try {
+                allocatedPicture = picturesRepository.save(allocatedPicture);
+                pictureMetadataCache.put(allocatedPicture);
+            } catch (RuntimeException e) {
+                log.error("Unable to save status of picture " + picture.getId(), e);
+            } finally {
+                allocation.complete(allocatedPicture);
+                allocations.remove(picture.getId(), allocation);
+            }
+        });
+    }
+
+    /**
+     * Returns the picture as it is after its allocation, READY or FAILED, without waiting for it.
+     *
+     * @throws PictureNotReadyException if the canvas of the picture is still being allocated
+     */
+    public Picture checkAllocated(Picture picture) {
+        if (picture.getStatus() != PictureStatus.PENDING) return picture;
+        CompletableFuture<Picture> allocation = allocations.get(picture.getId());
+        Picture allocatedPicture = allocation == null ? picture : allocation.getNow(picture);
+        if (allocatedPicture.getStatus() == PictureStatus.PENDING) {
+            throw new PictureNotReadyException("Picture with id " + picture.getId() + " is still being created");
+        }
+        return allocatedPicture;
+    }
+
+    /**
+     * Like {@link #checkAllocated}, but a picture whose allocation failed is an internal error.
+     */
+    public Picture checkReady(Picture picture) {
+        Picture allocatedPicture = checkAllocated(picture);
+        if (allocatedPicture.getStatus() == PictureStatus.FAILED) throw new WritingToDiskException("Internal Server Error");
+        return allocatedPicture;
+    }
+
+    /**
+     * Waits until the canvas of the picture is allocated, but no longer than {@code allocation.maxWait}.
+     * Returns the picture as it is after its allocation, READY or FAILED.
+     */
+    public Picture awaitAllocation(Picture picture) {
+        CompletableFuture<Picture> allocation = allocations.get(picture.getId());
+        Picture allocatedPicture = picture;
+        if (allocation != null) {
+            try {
+                allocatedPicture = allocation.get(maxWait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // Left PENDING, the client is asked to retry
+            }
+        }
+        if (allocatedPicture.getStatus() == PictureStatus.PENDING) {
+            throw new PictureNotReadyException("Picture with id " + picture.getId() + " is still being created");
+        }
+        return allocatedPicture;
+    }
+}
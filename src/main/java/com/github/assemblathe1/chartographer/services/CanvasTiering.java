@@ -0,0 +1,133 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves pictures that have not been written for a while to compressed tiles and back on their next write.
+ * <p>
+ * A picture is compressed under the read lock of the whole picture, so fragments are still served while
+ * writers wait. The last write of a picture is remembered in memory and falls back to the modification time
+ * of its file after a restart.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CanvasTiering {
+    private static final int PAGE_SIZE = 1000;
+
+    @Value("${tiering.enabled}")
+    private boolean enabled;
+    @Value("${tiering.coldAfter}")
+    private long coldAfter;
+    @Value("${tiering.checkInterval}")
+    private long checkInterval;
+
+    private final PicturesRepository picturesRepository;
+    private final BitmapFileService bitmapFileService;
+    private final PictureRegionLocks pictureRegionLocks;
+    private final WriteBehindBuffer writeBehindBuffer;
+
+    private final ConcurrentMap<Long, Long> lastWrites = new ConcurrentHashMap<>();
+    private ScheduledExecutorService tierer;
+
+    @PostConstruct
+    public void startTierer() {
+        if (!enabled) return;
+        tierer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "canvas-tiering");
+            thread.setDaemon(true);
+            return thread;
+        });
+        tierer.scheduleWithFixedDelay(this::compressColdPictures, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (tierer == null) return;
+        tierer.shutdown();
+        tierer.awaitTermination(checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Marks the picture as written and takes the region write lock of the fragment over raw files, restoring them
+     * first if the picture is compressed. Compression needs the read lock of the whole picture, so it is checked
+     * again under the region lock: a picture compressed after the first check is restored and the lock taken anew.
+     * The picture is no longer cold by then, so it is not compressed a second time.
+     */
+    public PictureRegionLocks.RegionLock lockForWrite(Picture picture, int x, int y, int width, int height) throws IOException {
+        lastWrites.put(picture.getId(), System.currentTimeMillis());
+        while (true) {
+            if (bitmapFileService.isCompressed(picture)) {
+                try (PictureRegionLocks.RegionLock ignored = pictureRegionLocks.lockForWrite(picture, 0, 0, picture.getWidth(), picture.getHeight())) {
+                    bitmapFileService.decompressPicture(picture);
+                }
+            }
+            PictureRegionLocks.RegionLock lock = pictureRegionLocks.lockForWrite(picture, x, y, width, height);
+            if (!bitmapFileService.isCompressed(picture)) return lock;
+            lock.close();
+        }
+    }
+
+    public void forget(Picture picture) {
+        lastWrites.remove(picture.getId());
+    }
+
+    public void compressColdPictures() {
+        try {
+            Pageable pageable = PageRequest.of(0, PAGE_SIZE, Sort.by("id"));
+            Page<Picture> pictures;
+            do {
+                pictures = picturesRepository.findAll(pageable);
+                pictures.forEach(this::compressIfCold);
+                pageable = pictures.nextPageable();
+            } while (pictures.hasNext());
+        } catch (RuntimeException e) {
+            log.error("Unable to compress cold pictures", e);
+        }
+    }
+
+    public void compressIfCold(Picture picture) {
+        try {
+            if (picture.getStatus() != PictureStatus.READY || bitmapFileService.isCompressed(picture) || !isCold(picture)) return;
+            try (PictureRegionLocks.RegionLock ignored = pictureRegionLocks.lockForRead(picture, 0, 0, picture.getWidth(), picture.getHeight())) {
+                // Writers are kept out from here on, a picture without buffered tiles stays as cold as it is now
+                if (bitmapFileService.isCompressed(picture) || !isCold(picture) || writeBehindBuffer.hasDirtyTiles(picture)) return;
+                bitmapFileService.compressPicture(picture);
+                log.info("Picture " + picture.getId() + " compressed");
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to compress picture " + picture.getId(), e);
+        }
+    }
+
+    private boolean isCold(Picture picture) throws IOException {
+        Long lastWrite = lastWrites.get(picture.getId());
+        if (lastWrite == null) {
+            Path path = Path.of(picture.getUrl());
+            if (!Files.exists(path)) return false;
+            lastWrite = Files.getLastModifiedTime(path).toMillis();
+        }
+        return System.currentTimeMillis() - lastWrite >= coldAfter;
+    }
+}
@@ -0,0 +1,242 @@
+package com.github.assemblathe1.chartographer.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only canvas of a cold picture, stored as square tiles that are deflated one by one.
+ * <p>
+ * The file starts with the magic "CHTL", the width, the height and the tile size, followed by the offset and the
+ * length of every tile in row-major order and by the deflated tiles themselves. Black tiles have zero length and
+ * are not stored at all. A tile holds the rows of its square without BMP padding; tiles on the right and bottom
+ * edges are cut to the picture. The last inflated tiles are kept, so a fragment read row by row inflates
+ * every tile once.
+ */
+public class CompressedCanvas implements Canvas {
+    private static final int MAGIC = 0x4348544c;
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final Map<Integer, byte[]> inflatedTiles;
+
+    private CompressedCanvas(FileChannel channel, int width, int height, int tileSize, long[] offsets, int[] lengths, int cachedTiles) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.inflatedTiles = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cachedTiles;
+            }
+        };
+    }
+
+    public static String getUrl(String url) {
+        return url.replaceFirst("\\.bmp$", "") + ".tiles";
+    }
+
+    public static CompressedCanvas open(Path path, int cachedTiles) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) throw new IOException("Not a compressed canvas: " + path);
+            int width = header.getInt();
+            int height = header.getInt();
+            int tileSize = header.getInt();
+            int tilesCount = getTilesCount(width, tileSize) * getTilesCount(height, tileSize);
+            ByteBuffer index = read(channel, HEADER_SIZE, tilesCount * INDEX_ENTRY_SIZE);
+            long[] offsets = new long[tilesCount];
+            int[] lengths = new int[tilesCount];
+            for (int i = 0; i < tilesCount; i++) {
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+            return new CompressedCanvas(channel, width, height, tileSize, offsets, lengths, cachedTiles);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the pixels of a canvas to a new compressed file, one band of tile rows at a time.
+     */
+    public static void write(Canvas source, Path path, int tileSize) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int tilesInRow = getTilesCount(width, tileSize);
+        int tilesCount = tilesInRow * getTilesCount(height, tileSize);
+        ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + tilesCount * INDEX_ENTRY_SIZE);
+        index.putInt(MAGIC).putInt(width).putInt(height).putInt(tileSize);
+
+        byte[] band = new byte[3 * width * tileSize];
+        byte[] tile = new byte[3 * tileSize * tileSize];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteArrayOutputStream deflatedTile = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = index.capacity();
+            for (int tileRow = 0; tileRow * tileSize < height; tileRow++) {
+                int tileRows = Math.min(tileSize, height - tileRow * tileSize);
+                for (int i = 0; i < tileRows; i++) source.readRow(tileRow * tileSize + i, 0, band, 3 * width * i, width);
+
+                for (int tileColumn = 0; tileColumn < tilesInRow; tileColumn++) {
+                    int tileBytes = 3 * Math.min(tileSize, width - tileColumn * tileSize);
+                    for (int i = 0; i < tileRows; i++) {
+                        System.arraycopy(band, 3 * (width * i + tileColumn * tileSize), tile, tileBytes * i, tileBytes);
+                    }
+                    if (isBlack(tile, tileBytes * tileRows)) {
+                        index.putLong(0).putInt(0);
+                        continue;
+                    }
+                    deflater.reset();
+                    deflater.setInput(tile, 0, tileBytes * tileRows);
+                    deflater.finish();
+                    deflatedTile.reset();
+                    while (!deflater.finished()) deflatedTile.write(buffer, 0, deflater.deflate(buffer));
+                    index.putLong(position).putInt(deflatedTile.size());
+                    position += write(channel, position, ByteBuffer.wrap(deflatedTile.toByteArray()));
+                }
+            }
+            write(channel, 0, index.flip());
+            channel.force(true);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int y, int x, byte[] destination, int destinationOffset, int pixels) {
+        int tileRow = y / tileSize;
+        int tilesInRow = getTilesCount(width, tileSize);
+        for (int segmentX = x; segmentX < x + pixels; ) {
+            int tileColumn = segmentX / tileSize;
+            int segmentPixels = Math.min(x + pixels, (tileColumn + 1) * tileSize) - segmentX;
+            int segmentOffset = destinationOffset + 3 * (segmentX - x);
+            byte[] tile = getTile(tileRow * tilesInRow + tileColumn);
+            if (tile == null) {
+                Arrays.fill(destination, segmentOffset, segmentOffset + 3 * segmentPixels, (byte) 0);
+            } else {
+                int tilePixels = Math.min(tileSize, width - tileColumn * tileSize);
+                System.arraycopy(tile, 3 * ((y - tileRow * tileSize) * tilePixels + segmentX - tileColumn * tileSize),
+                        destination, segmentOffset, 3 * segmentPixels);
+            }
+            segmentX += segmentPixels;
+        }
+    }
+
+    @Override
+    public void writeRow(int y, int x, byte[] source, int sourceOffset, int pixels) {
+        throw new IllegalStateException("Compressed canvas is read-only");
+    }
+
+    /**
+     * Writes the stored tiles to a blank canvas of the same size; black tiles are left untouched.
+     */
+    public void copyTo(Canvas target) {
+        int tilesInRow = getTilesCount(width, tileSize);
+        for (int tileIndex = 0; tileIndex < lengths.length; tileIndex++) {
+            if (lengths[tileIndex] == 0) continue;
+            byte[] tile = inflate(tileIndex);
+            int tileX = tileIndex % tilesInRow * tileSize;
+            int tileY = tileIndex / tilesInRow * tileSize;
+            int tilePixels = Math.min(tileSize, width - tileX);
+            for (int i = 0; i < Math.min(tileSize, height - tileY); i++) {
+                target.writeRow(tileY + i, tileX, tile, 3 * tilePixels * i, tilePixels);
+            }
+        }
+    }
+
+    @Override
+    public void force() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private byte[] getTile(int tileIndex) {
+        if (lengths[tileIndex] == 0) return null;
+        synchronized (inflatedTiles) {
+            byte[] tile = inflatedTiles.get(tileIndex);
+            if (tile == null) {
+                tile = inflate(tileIndex);
+                inflatedTiles.put(tileIndex, tile);
+            }
+            return tile;
+        }
+    }
+
+    private byte[] inflate(int tileIndex) {
+        int tilesInRow = getTilesCount(width, tileSize);
+        int tilePixels = Math.min(tileSize, width - tileIndex % tilesInRow * tileSize);
+        int tileRows = Math.min(tileSize, height - tileIndex / tilesInRow * tileSize);
+        byte[] tile = new byte[3 * tilePixels * tileRows];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(read(channel, offsets[tileIndex], lengths[tileIndex]).array());
+            if (inflater.inflate(tile) != tile.length) throw new IllegalStateException("Compressed tile " + tileIndex + " is truncated");
+            return tile;
+        } catch (IOException | DataFormatException e) {
+            throw new IllegalStateException("Unable to read compressed tile " + tileIndex, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean isBlack(byte[] tile, int length) {
+        for (int i = 0; i < length; i++) {
+            if (tile[i] != 0) return false;
+        }
+        return true;
+    }
+
+    private static int getTilesCount(int pictureSideSize, int tileSize) {
+        return (pictureSideSize + tileSize - 1) / tileSize;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of compressed canvas");
+        }
+        return buffer.flip();
+    }
+
+    private static int write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) channel.write(buffer, position + length - buffer.remaining());
+        return length;
+    }
+}
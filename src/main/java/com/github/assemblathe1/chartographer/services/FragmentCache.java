@@ -0,0 +1,126 @@
+package com.github.assemblathe1.chartographer.services;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LRU of encoded BMP fragments, bounded by their total size in bytes.
+ * <p>
+ * Entries are put while the reader still holds the region read lock and invalidated while the writer holds the
+ * write lock, so a fragment rendered before an overlapping save can never outlive that save in the cache.
+ */
+@Component
+public class FragmentCache {
+    @Value("${fragmentCache.maxBytes}")
+    private long maxBytes;
+    @Value("${fragmentCache.maxEntryBytes}")
+    private long maxEntryBytes;
+
+    private final LinkedHashMap<FragmentKey, byte[]> fragments = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, Set<FragmentKey>> pictureFragments = new HashMap<>();
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public boolean isCacheable(long fragmentLength) {
+        return fragmentLength <= maxEntryBytes && fragmentLength <= maxBytes;
+    }
+
+    public synchronized byte[] get(FragmentKey key) {
+        byte[] fragment = fragments.get(key);
+        if (fragment == null) misses++;
+        else hits++;
+        return fragment;
+    }
+
+    public synchronized void put(FragmentKey key, byte[] fragment) {
+        if (!isCacheable(fragment.length)) return;
+        byte[] previous = fragments.put(key, fragment);
+        if (previous != null) cachedBytes -= previous.length;
+        cachedBytes += fragment.length;
+        pictureFragments.computeIfAbsent(key.getId(), id -> new HashSet<>()).add(key);
+
+        Iterator<Map.Entry<FragmentKey, byte[]>> eldest = fragments.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<FragmentKey, byte[]> entry = eldest.next();
+            eldest.remove();
+            forget(entry.getKey(), entry.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every cached fragment of the picture whose canvas area intersects the given rectangle.
+     */
+    public synchronized void invalidate(long id, int x, int y, int width, int height) {
+        Set<FragmentKey> keys = pictureFragments.get(id);
+        if (keys == null) return;
+        for (Iterator<FragmentKey> iterator = keys.iterator(); iterator.hasNext(); ) {
+            FragmentKey key = iterator.next();
+            int level = key.getLevel();
+            boolean intersects = (key.getX() << level) < x + width && x < (key.getX() + key.getWidth()) << level
+                    && (key.getY() << level) < y + height && y < (key.getY() + key.getHeight()) << level;
+            if (!intersects) continue;
+            iterator.remove();
+            cachedBytes -= fragments.remove(key).length;
+            invalidations++;
+        }
+        if (keys.isEmpty()) pictureFragments.remove(id);
+    }
+
+    public synchronized void invalidate(long id) {
+        Set<FragmentKey> keys = pictureFragments.remove(id);
+        if (keys == null) return;
+        keys.forEach(key -> cachedBytes -= fragments.remove(key).length);
+        invalidations += keys.size();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    private void forget(FragmentKey key, byte[] fragment) {
+        cachedBytes -= fragment.length;
+        Set<FragmentKey> keys = pictureFragments.get(key.getId());
+        keys.remove(key);
+        if (keys.isEmpty()) pictureFragments.remove(key.getId());
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class FragmentKey {
+        private long id;
+        private int x;
+        private int y;
+        private int width;
+        private int height;
+        private int level;
+    }
+}
@@ -0,0 +1,503 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.dtos.FragmentRows;
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of saved fragments, so a crash never leaves a half-applied fragment behind.
+ * <p>
+ * A fragment is appended and applied under {@link #lockForAppend()} and the region write lock, so the journal
+ * holds overlapping fragments in the order the canvas got them. It is acknowledged after {@link #commit(long)},
+ * where concurrent writers share one fsync of the journal: whoever comes first syncs everything appended so far and
+ * the others only wait for it. The canvas itself is written back later by the write-behind flusher and the page
+ * cache. A checkpoint starts a new journal file, writes the canvases of the previous one to the device and deletes
+ * it; the files still present on startup are replayed before the first request is served.
+ * <p>
+ * A record is the magic "CHJR", the picture id, x, y, width and height of the rows, the rows themselves and a
+ * CRC32 of all of it. Replay stops at the first incomplete or damaged record, which can only be the torn tail of
+ * an unacknowledged fragment.
+ * <p>
+ * Fragments bigger than {@code journal.maxRecordPixels} are journaled in chunks. Between {@link #beginFragment()} and
+ * {@link #endFragment()} their rows are appended as "CHJC" records of at most {@code journal.maxRecordPixels} pixels,
+ * or one row, without any lock. The fragment is then closed by a "CHJE" record with its whole rectangle, appended,
+ * committed and applied like a small fragment, its rows read back from the chunks. Both carry the fragment number
+ * after the header. Replay applies the chunks of a fragment only when it reaches its end record, so a fragment whose
+ * end record never made it to the device is not applied at all. The journal is not rotated while a fragment is open,
+ * its chunks and its end record always share one file.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class FragmentJournal {
+    private static final int RECORD_MAGIC = 0x43484a52;
+    private static final int CHUNK_MAGIC = 0x43484a43;
+    private static final int END_MAGIC = 0x43484a45;
+    private static final int RECORD_HEADER_SIZE = 28;
+    private static final int RECORD_CHECKSUM_SIZE = 4;
+    private static final int FRAGMENT_NUMBER_SIZE = 8;
+    private static final Pattern JOURNAL_FILE = Pattern.compile("fragments-(\\d+)\\.journal");
+
+    @Value("${journal.enabled}")
+    private boolean enabled;
+    @Value("${journal.folder}")
+    private String folder;
+    @Value("${journal.maxRecordPixels}")
+    private long maxRecordPixels;
+    @Value("${journal.maxBytes}")
+    private long maxBytes;
+    @Value("${journal.checkpointInterval}")
+    private long checkpointInterval;
+
+    private final PicturesRepository picturesRepository;
+    private final BitmapFileService bitmapFileService;
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final CanvasTiering canvasTiering;
+
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final Object commits = new Object();
+    private final AtomicBoolean checkpointRequested = new AtomicBoolean();
+    // Journals and pictures of checkpoints that are not finished yet, owned by the checkpointing thread
+    private final List<Path> checkpointedJournals = new ArrayList<>();
+    private final ConcurrentMap<Long, Picture> checkpointedPictures = new ConcurrentHashMap<>();
+    private ConcurrentMap<Long, Picture> appendedPictures = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private long generation;
+    private long generationBytes;
+    private long appendedBytes;
+    private long durableBytes;
+    private boolean syncing;
+    private long fragments;
+    private int openFragments;
+    private ScheduledExecutorService checkpointer;
+
+    @PostConstruct
+    public void startJournal() throws IOException {
+        if (!enabled) return;
+        Path journalFolder = Path.of(folder);
+        Files.createDirectories(journalFolder);
+        List<Path> journals;
+        try (Stream<Path> files = Files.list(journalFolder)) {
+            journals = files
+                    .filter(file -> JOURNAL_FILE.matcher(file.getFileName().toString()).matches())
+                    .sorted(Comparator.comparingLong(this::getGeneration))
+                    .collect(Collectors.toList());
+        }
+        for (Path journal : journals) {
+            replay(journal);
+            checkpointedJournals.add(journal);
+        }
+        checkpointedPictures.putAll(appendedPictures);
+        appendedPictures.clear();
+        finishCheckpoint();
+
+        generation = journals.isEmpty() ? 1 : getGeneration(journals.get(journals.size() - 1)) + 1;
+        channel = openJournal(generation);
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException, IOException {
+        if (checkpointer == null) return;
+        checkpointer.shutdown();
+        checkpointer.awaitTermination(checkpointInterval, TimeUnit.MILLISECONDS);
+        checkpoint();
+        channel.close();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isJournaled(int width, int height) {
+        return enabled && (long) width * height <= maxRecordPixels;
+    }
+
+    /**
+     * Rows of a chunk: as many rows of the fragment as fit {@code journal.maxRecordPixels}, at least one.
+     */
+    public int getChunkRows(int width) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxRecordPixels / width));
+    }
+
+    /**
+     * Keeps checkpoints out while a fragment is appended and applied. Must be taken after the region write lock
+     * of the fragment, so a writer never holds it while it waits for the readers of its region.
+     */
+    public AppendLock lockForAppend() {
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        return new AppendLock(lock);
+    }
+
+    public Path getJournalPath() {
+        return getJournalPath(generation);
+    }
+
+    /**
+     * Appends the rows of a fragment. The caller must hold {@link #lockForAppend()} and the region write lock
+     * of the rows and must apply them before releasing either.
+     *
+     * @return the position to pass to {@link #commit(long)}
+     */
+    public long append(Picture picture, FragmentRows fragmentRows) throws IOException {
+        return write(createRecord(RECORD_MAGIC, picture.getId(), 0, fragmentRows), picture);
+    }
+
+    /**
+     * Opens a fragment to be journaled in chunks, the journal stays in its current file until {@link #endFragment()}.
+     *
+     * @return the fragment number to pass to {@link #appendChunk} and {@link #appendEnd}
+     */
+    public synchronized long beginFragment() {
+        openFragments++;
+        return ++fragments;
+    }
+
+    public synchronized void endFragment() {
+        openFragments--;
+    }
+
+    /**
+     * Appends rows of an open fragment. No lock is needed, the rows are not applied before {@link #appendEnd}.
+     *
+     * @return the offset of the chunk to pass to {@link #readChunk(long)}
+     */
+    public long appendChunk(long fragment, Picture picture, FragmentRows fragmentRows) throws IOException {
+        ByteBuffer[] record = createRecord(CHUNK_MAGIC, picture.getId(), fragment, fragmentRows);
+        synchronized (this) {
+            long offset = generationBytes;
+            write(record, picture);
+            return offset;
+        }
+    }
+
+    /**
+     * Closes an open fragment, from then on replay applies its chunks. The caller must hold {@link #lockForAppend()}
+     * and the region write lock of the fragment and must apply its chunks before releasing either.
+     *
+     * @return the position to pass to {@link #commit(long)}
+     */
+    public long appendEnd(long fragment, Picture picture, int x, int y, int width, int height) throws IOException {
+        return write(createRecord(END_MAGIC, picture.getId(), fragment, new FragmentRows(x, y, width, height, new byte[0])), picture);
+    }
+
+    /**
+     * Reads back the rows of a chunk appended to the current journal by an open fragment.
+     */
+    public FragmentRows readChunk(long offset) throws IOException {
+        FileChannel chunks;
+        synchronized (this) {
+            chunks = channel;
+        }
+        return readChunk(chunks, offset);
+    }
+
+    /**
+     * Returns once everything appended up to the position is on the device.
+     */
+    public void commit(long position) throws IOException {
+        synchronized (commits) {
+            while (durableBytes < position && syncing) {
+                try {
+                    commits.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the fragment journal");
+                }
+            }
+            if (durableBytes >= position) return;
+            syncing = true;
+        }
+        long syncedBytes = 0;
+        boolean synced = false;
+        try {
+            FileChannel syncedChannel;
+            synchronized (this) {
+                syncedBytes = appendedBytes;
+                syncedChannel = channel;
+            }
+            syncedChannel.force(false);
+            synced = true;
+        } finally {
+            finishSync(synced, syncedBytes);
+        }
+    }
+
+    /**
+     * Starts a new journal and deletes the previous one once its pictures are written to the device.
+     */
+    public void checkpoint() {
+        checkpointRequested.set(false);
+        try {
+            checkpointLock.writeLock().lock();
+            try {
+                rotate();
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            finishCheckpoint();
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to checkpoint the fragment journal", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Applies every complete record of the journal to the canvases of pictures that are still READY.
+     */
+    public void replay(Path journal) throws IOException {
+        int records = 0;
+        long offset = 0;
+        Map<Long, List<Long>> chunkOffsets = new HashMap<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)));
+             FileChannel chunks = FileChannel.open(journal, StandardOpenOption.READ)) {
+            for (Optional<Record> record = readRecord(input); record.isPresent(); record = readRecord(input)) {
+                Record fragmentRecord = record.get();
+                if (fragmentRecord.magic == CHUNK_MAGIC) {
+                    chunkOffsets.computeIfAbsent(fragmentRecord.fragment, fragment -> new ArrayList<>()).add(offset);
+                } else if (apply(fragmentRecord, chunkOffsets.getOrDefault(fragmentRecord.fragment, List.of()), chunks)) {
+                    records++;
+                }
+                if (fragmentRecord.magic == END_MAGIC) chunkOffsets.remove(fragmentRecord.fragment);
+                offset += fragmentRecord.length;
+            }
+        }
+        log.info(records + " fragments replayed from " + journal + ", " + chunkOffsets.size() + " unfinished fragments skipped");
+    }
+
+    private void rotate() throws IOException, InterruptedException {
+        synchronized (commits) {
+            while (syncing) commits.wait();
+            syncing = true;
+        }
+        long syncedBytes = 0;
+        boolean synced = false;
+        try {
+            synchronized (this) {
+                // An open fragment keeps its chunks and its end record in one file, the next checkpoint rotates
+                if (generationBytes == 0 || openFragments > 0) return;
+                channel.force(false);
+                channel.close();
+                syncedBytes = appendedBytes;
+                synced = true;
+                checkpointedJournals.add(getJournalPath(generation));
+                checkpointedPictures.putAll(appendedPictures);
+                appendedPictures = new ConcurrentHashMap<>();
+                generationBytes = 0;
+                channel = openJournal(++generation);
+            }
+        } finally {
+            finishSync(synced, syncedBytes);
+        }
+    }
+
+    private void finishCheckpoint() throws IOException {
+        // Every record of the journals has been applied, the canvases are made as durable as the records
+        for (Picture picture : checkpointedPictures.values()) {
+            writeBehindBuffer.flush(picture);
+            bitmapFileService.forcePicture(picture);
+        }
+        for (Path journal : checkpointedJournals) Files.deleteIfExists(journal);
+        checkpointedJournals.clear();
+        checkpointedPictures.clear();
+    }
+
+    private void finishSync(boolean synced, long syncedBytes) {
+        synchronized (commits) {
+            syncing = false;
+            if (synced) durableBytes = Math.max(durableBytes, syncedBytes);
+            commits.notifyAll();
+        }
+    }
+
+    private boolean apply(Record record, List<Long> chunkOffsets, FileChannel chunks) {
+        try {
+            Optional<Picture> picture = picturesRepository.findById(record.pictureId);
+            if (picture.isEmpty() || picture.get().getStatus() != PictureStatus.READY) return false;
+            FragmentRows rows = record.fragmentRows;
+            try (PictureRegionLocks.RegionLock ignored = canvasTiering.lockForWrite(picture.get(), rows.getX(), rows.getY(), rows.getWidth(), rows.getHeight())) {
+                if (record.magic == RECORD_MAGIC) {
+                    bitmapFileService.writePictureRows(rows, picture.get());
+                } else {
+                    for (long offset : chunkOffsets) bitmapFileService.writePictureRows(readChunk(chunks, offset), picture.get());
+                }
+                bitmapFileService.updatePictureLevels(rows.getX(), rows.getY(), rows.getWidth(), rows.getHeight(), picture.get());
+            }
+            appendedPictures.put(record.pictureId, picture.get());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to replay a fragment of picture " + record.pictureId, e);
+            return false;
+        }
+    }
+
+    private synchronized long write(ByteBuffer[] record, Picture picture) throws IOException {
+        long recordLength = 0;
+        for (ByteBuffer buffer : record) recordLength += buffer.remaining();
+        while (record[record.length - 1].hasRemaining()) channel.write(record);
+        appendedBytes += recordLength;
+        generationBytes += recordLength;
+        appendedPictures.put(picture.getId(), picture);
+        if (generationBytes > maxBytes && checkpointRequested.compareAndSet(false, true)) checkpointer.execute(this::checkpoint);
+        return appendedBytes;
+    }
+
+    private ByteBuffer[] createRecord(int magic, long pictureId, long fragment, FragmentRows fragmentRows) {
+        ByteBuffer header = ByteBuffer.allocate(getHeaderSize(magic))
+                .putInt(magic)
+                .putLong(pictureId)
+                .putInt(fragmentRows.getX())
+                .putInt(fragmentRows.getY())
+                .putInt(fragmentRows.getWidth())
+                .putInt(fragmentRows.getHeight());
+        if (magic != RECORD_MAGIC) header.putLong(fragment);
+        header.flip();
+        CRC32 checksum = new CRC32();
+        checksum.update(header.array());
+        checksum.update(fragmentRows.getRows());
+        return new ByteBuffer[]{header, ByteBuffer.wrap(fragmentRows.getRows()), ByteBuffer.allocate(RECORD_CHECKSUM_SIZE).putInt((int) checksum.getValue()).flip()};
+    }
+
+    private Optional<Record> readRecord(DataInputStream input) throws IOException {
+        byte[] fixedHeader = input.readNBytes(RECORD_HEADER_SIZE);
+        if (fixedHeader.length < RECORD_HEADER_SIZE) return Optional.empty();
+        ByteBuffer fields = ByteBuffer.wrap(fixedHeader);
+        int magic = fields.getInt();
+        if (magic != RECORD_MAGIC && magic != CHUNK_MAGIC && magic != END_MAGIC) return Optional.empty();
+        byte[] header = Arrays.copyOf(fixedHeader, getHeaderSize(magic));
+        if (input.readNBytes(header, RECORD_HEADER_SIZE, header.length - RECORD_HEADER_SIZE) < header.length - RECORD_HEADER_SIZE) return Optional.empty();
+        long pictureId = fields.getLong();
+        int x = fields.getInt();
+        int y = fields.getInt();
+        int width = fields.getInt();
+        int height = fields.getInt();
+        long fragment = magic == RECORD_MAGIC ? 0 : ByteBuffer.wrap(header, RECORD_HEADER_SIZE, FRAGMENT_NUMBER_SIZE).getLong();
+        // An end record carries no rows, a chunk of a very wide fragment holds a single row
+        long rowsLength = magic == END_MAGIC ? 0 : 3L * width * height;
+        long maxRowsLength = 3 * (magic == CHUNK_MAGIC ? Math.max(maxRecordPixels, width) : maxRecordPixels);
+        if (width < 0 || height < 0 || rowsLength > maxRowsLength || rowsLength > Integer.MAX_VALUE) return Optional.empty();
+
+        byte[] rows = input.readNBytes((int) rowsLength);
+        byte[] storedChecksum = input.readNBytes(RECORD_CHECKSUM_SIZE);
+        if (rows.length < rowsLength || storedChecksum.length < RECORD_CHECKSUM_SIZE) return Optional.empty();
+        CRC32 checksum = new CRC32();
+        checksum.update(header);
+        checksum.update(rows);
+        if (ByteBuffer.wrap(storedChecksum).getInt() != (int) checksum.getValue()) return Optional.empty();
+        long length = header.length + rowsLength + RECORD_CHECKSUM_SIZE;
+        return Optional.of(new Record(magic, pictureId, fragment, new FragmentRows(x, y, width, height, rows), length));
+    }
+
+    private FragmentRows readChunk(FileChannel chunks, long offset) throws IOException {
+        ByteBuffer fields = readFully(chunks, offset, getHeaderSize(CHUNK_MAGIC));
+        fields.position(Integer.BYTES + Long.BYTES);
+        int x = fields.getInt();
+        int y = fields.getInt();
+        int width = fields.getInt();
+        int height = fields.getInt();
+        byte[] rows = readFully(chunks, offset + getHeaderSize(CHUNK_MAGIC), 3 * width * height).array();
+        return new FragmentRows(x, y, width, height, rows);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Journal ends inside a chunk at " + position);
+        }
+        return buffer.flip();
+    }
+
+    private static int getHeaderSize(int magic) {
+        return magic == RECORD_MAGIC ? RECORD_HEADER_SIZE : RECORD_HEADER_SIZE + FRAGMENT_NUMBER_SIZE;
+    }
+
+    private FileChannel openJournal(long generation) throws IOException {
+        // Readable as well, the chunks of big fragments are read back to be applied
+        return FileChannel.open(getJournalPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private Path getJournalPath(long generation) {
+        return Path.of(folder, "fragments-" + generation + ".journal");
+    }
+
+    private long getGeneration(Path journal) {
+        Matcher matcher = JOURNAL_FILE.matcher(journal.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+    public static class AppendLock implements AutoCloseable {
+        private final Lock lock;
+
+        private AppendLock(Lock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public void close() {
+            lock.unlock();
+        }
+    }
+
+    private static class Record {
+        private final int magic;
+        private final long pictureId;
+        private final long fragment;
+        private final FragmentRows fragmentRows;
+        private final long length;
+
+        private Record(int magic, long pictureId, long fragment, FragmentRows fragmentRows, long length) {
+            this.magic = magic;
+            this.pictureId = pictureId;
+            this.fragment = fragment;
+            this.fragmentRows = fragmentRows;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.assemblathe1.chartographer.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Pixel rows of a 24-bit BMP canvas mapped into memory.
+ * <p>
+ * The image data is split into segments of whole rows, so a canvas bigger than one 2 GB window
+ * is served by several mappings and a row never crosses a segment border.
+ * Rows are addressed top-down, as in the HTTP API, and translated to the bottom-up BMP layout here.
+ */
+public class MappedCanvas implements Canvas {
+    private static final int BMP_SIZE_HEADER = 54;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final int width;
+    private final int height;
+    private final int rowStride;
+    private final int rowsPerSegment;
+
+    private MappedCanvas(FileChannel channel, MappedByteBuffer[] segments, int width, int height, int rowStride, int rowsPerSegment) {
+        this.channel = channel;
+        this.segments = segments;
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+        this.rowsPerSegment = rowsPerSegment;
+    }
+
+    public static MappedCanvas open(Path path, int width, int height, long segmentSize) throws IOException {
+        int rowStride = width * 3 + (width * 3 % 4 == 0 ? 0 : 4 - (width * 3 % 4));
+        int rowsPerSegment = (int) Math.max(1, Math.min(segmentSize, Integer.MAX_VALUE) / rowStride);
+        int segmentsCount = (height + rowsPerSegment - 1) / rowsPerSegment;
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentsCount];
+            for (int i = 0; i < segmentsCount; i++) {
+                int rows = Math.min(rowsPerSegment, height - i * rowsPerSegment);
+                long position = BMP_SIZE_HEADER + (long) i * rowsPerSegment * rowStride;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) rows * rowStride);
+            }
+            return new MappedCanvas(channel, segments, width, height, rowStride, rowsPerSegment);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int y, int x, byte[] destination, int destinationOffset, int pixels) {
+        ByteBuffer row = rowBuffer(y, x);
+        row.get(destination, destinationOffset, pixels * 3);
+    }
+
+    @Override
+    public void writeRow(int y, int x, byte[] source, int sourceOffset, int pixels) {
+        ByteBuffer row = rowBuffer(y, x);
+        row.put(source, sourceOffset, pixels * 3);
+    }
+
+    /**
+     * Copies the picture rows {@code [y, y + rows)} with their padding in the bottom-up order they are stored in,
+     * so the rows of a fragment as wide as the picture are read with one copy per segment instead of one per row.
+     */
+    public void readRows(int y, int rows, byte[] destination, int destinationOffset) {
+        long segmentBytes = (long) rowsPerSegment * rowStride;
+        long offset = (long) (height - y - rows) * rowStride;
+        int count = rows * rowStride;
+        while (count > 0) {
+            ByteBuffer segment = segments[(int) (offset / segmentBytes)].duplicate();
+            segment.position((int) (offset % segmentBytes));
+            int length = Math.min(segment.remaining(), count);
+            segment.get(destination, destinationOffset, length);
+            offset += length;
+            destinationOffset += length;
+            count -= length;
+        }
+    }
+
+    @Override
+    public void force() {
+        for (MappedByteBuffer segment : segments) segment.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer rowBuffer(int y, int x) {
+        int fileRow = height - 1 - y;
+        ByteBuffer segment = segments[fileRow / rowsPerSegment].duplicate();
+        segment.position((fileRow % rowsPerSegment) * rowStride + 3 * x);
+        return segment;
+    }
+}
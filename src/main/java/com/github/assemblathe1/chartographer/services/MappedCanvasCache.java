@@ -0,0 +1,103 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.exceptions.WritingToDiskException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of open canvas mappings, so fragment requests do not reopen and remap the file every time.
+ * A mapping stays valid after its channel is closed, therefore evicting a canvas that is still being copied is safe.
+ * <p>
+ * A picture is stored either as a raw BMP or, once it is cold, as a {@link CompressedCanvas} next to it.
+ * The raw file wins when both exist, because it is only ever left behind by an interrupted conversion.
+ */
+@Slf4j
+@Component
+public class MappedCanvasCache {
+    @Value("${storage.mappedSegmentSize}")
+    private long mappedSegmentSize;
+    @Value("${storage.mappedCanvasCacheSize}")
+    private int mappedCanvasCacheSize;
+    @Value("${tiering.cachedTilesPerCanvas}")
+    private int cachedTilesPerCanvas;
+
+    private final Map<String, Canvas> canvases = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Canvas> eldest) {
+            if (size() <= mappedCanvasCacheSize) return false;
+            close(eldest.getValue());
+            return true;
+        }
+    };
+
+    public synchronized Canvas get(Picture picture) throws IOException {
+        Canvas canvas = canvases.get(picture.getUrl());
+        if (canvas == null) {
+            Path path = Path.of(picture.getUrl());
+            Path compressedPath = Path.of(CompressedCanvas.getUrl(picture.getUrl()));
+            if (Files.exists(path)) canvas = map(path, picture.getWidth(), picture.getHeight());
+            else if (Files.exists(compressedPath)) canvas = CompressedCanvas.open(compressedPath, cachedTilesPerCanvas);
+            else throw new WritingToDiskException("Internal Server Error");
+            canvases.put(picture.getUrl(), canvas);
+        }
+        return canvas;
+    }
+
+    /**
+     * Maps a raw canvas without caching it.
+     */
+    public MappedCanvas map(Path path, int width, int height) throws IOException {
+        return MappedCanvas.open(path, width, height, mappedSegmentSize);
+    }
+
+    public synchronized boolean exists(Picture picture) {
+        return canvases.containsKey(picture.getUrl())
+                || Files.exists(Path.of(picture.getUrl()))
+                || Files.exists(Path.of(CompressedCanvas.getUrl(picture.getUrl())));
+    }
+
+    public synchronized boolean isCompressed(Picture picture) {
+        Canvas canvas = canvases.get(picture.getUrl());
+        if (canvas != null) return canvas instanceof CompressedCanvas;
+        return !Files.exists(Path.of(picture.getUrl())) && Files.exists(Path.of(CompressedCanvas.getUrl(picture.getUrl())));
+    }
+
+    public synchronized void evict(String url) {
+        Canvas canvas = canvases.remove(url);
+        if (canvas != null) close(canvas);
+    }
+
+    /**
+     * Evicts the canvas and deletes one of its files, so no request can open the file in between.
+     */
+    public synchronized void evictAndDelete(String url, Path path) throws IOException {
+        evict(url);
+        Files.deleteIfExists(path);
+    }
+
+    @PreDestroy
+    public synchronized void closeAll() {
+        canvases.values().forEach(canvas -> {
+            canvas.force();
+            close(canvas);
+        });
+        canvases.clear();
+    }
+
+    private void close(Canvas canvas) {
+        try {
+            canvas.close();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+}
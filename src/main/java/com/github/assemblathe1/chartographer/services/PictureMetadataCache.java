@@ -0,0 +1,91 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pictures by id, so fragment requests do not go to the database for the url and size of an immutable picture.
+ * Missing ids are cached too, for a short time, to keep floods of requests to unknown pictures cheap.
+ * <p>
+ * Entities are mutable, so the cache keeps its own copies and hands out copies; a caller changing its picture never
+ * changes what other requests see.
+ */
+@Component
+public class PictureMetadataCache {
+    @Value("${metadataCache.maxEntries}")
+    private int maxEntries;
+    @Value("${metadataCache.maxMissingEntries}")
+    private int maxMissingEntries;
+    @Value("${metadataCache.missingEntryTtl}")
+    private long missingEntryTtl;
+
+    private final ConcurrentMap<Long, Picture> pictures = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Long> missingPictures = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public Optional<Picture> get(Long id, Supplier<Optional<Picture>> loader) {
+        Picture picture = pictures.get(id);
+        if (picture != null) return Optional.of(copy(picture));
+        Long missingUntil = missingPictures.get(id);
+        if (missingUntil != null && missingUntil - System.nanoTime() > 0) return Optional.empty();
+
+        long invalidationsBeforeLoading = invalidations.get();
+        Optional<Picture> loadedPicture = loader.get();
+        if (loadedPicture.isEmpty()) {
+            if (invalidations.get() == invalidationsBeforeLoading) putMissing(id);
+            return loadedPicture;
+        }
+        Picture snapshot = copy(loadedPicture.get());
+        evictIfFull();
+        // Checked and stored atomically with respect to invalidate, which removes the entry after counting:
+        // a picture deleted while it was being loaded is not cached, and a newer entry put meanwhile is kept
+        Picture cachedPicture = pictures.compute(id, (key, current) -> current != null || invalidations.get() != invalidationsBeforeLoading ? current : snapshot);
+        return Optional.of(copy(cachedPicture != null ? cachedPicture : snapshot));
+    }
+
+    public void put(Picture picture) {
+        missingPictures.remove(picture.getId());
+        evictIfFull();
+        pictures.put(picture.getId(), copy(picture));
+    }
+
+    public void invalidate(Long id) {
+        invalidations.incrementAndGet();
+        pictures.remove(id);
+        missingPictures.remove(id);
+    }
+
+    public void clear() {
+        pictures.clear();
+        missingPictures.clear();
+    }
+
+    private void evictIfFull() {
+        if (pictures.size() >= maxEntries) removeAny(pictures.keySet().iterator());
+    }
+
+    private static Picture copy(Picture picture) {
+        return new Picture(picture.getId(), picture.getUrl(), picture.getWidth(), picture.getHeight(), picture.getStatus(), picture.getStorageRoot());
+    }
+
+    private void putMissing(Long id) {
+        if (missingPictures.size() >= maxMissingEntries) removeAny(missingPictures.keySet().iterator());
+        missingPictures.put(id, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(missingEntryTtl));
+    }
+
+    private void removeAny(Iterator<Long> ids) {
+        if (ids.hasNext()) {
+            ids.next();
+            ids.remove();
+        }
+    }
+}
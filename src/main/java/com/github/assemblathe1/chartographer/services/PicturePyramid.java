@@ -0,0 +1,127 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+
+/**
+ * Downsampled overview levels of a picture, each one a BMP next to the canvas with half the size of the previous level.
+ * <p>
+ * A pixel of level {@code k} is the 2x2 average of level {@code k - 1}, so it depends on a {@code 2^k} square of
+ * the canvas. As long as that square fits into a tile of {@link PictureRegionLocks}, the region lock of a fragment
+ * also covers every level pixel it changes.
+ */
+@Component
+@RequiredArgsConstructor
+public class PicturePyramid {
+    @Value("${pyramid.maxLevel}")
+    private int maxLevel;
+    @Value("${pyramid.minLevelSize}")
+    private int minLevelSize;
+    @Value("${storage.lockTileSize}")
+    private int lockTileSize;
+
+    private final MappedCanvasCache mappedCanvasCache;
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final RowBufferPool rowBufferPool;
+
+    @PostConstruct
+    public void checkLevels() {
+        if (lockTileSize % (1 << maxLevel) != 0) throw new IllegalStateException("2^pyramid.maxLevel must divide storage.lockTileSize");
+    }
+
+    public int getLevelsCount(int width, int height) {
+        int levels = 0;
+        while (levels < maxLevel && Math.max(getLevelSideSize(width, levels), getLevelSideSize(height, levels)) > minLevelSize) levels++;
+        return levels;
+    }
+
+    public Picture getLevel(Picture picture, int level) {
+        if (level == 0) return picture;
+        return new Picture(
+                getLevelUrl(picture.getUrl(), level),
+                getLevelSideSize(picture.getWidth(), level),
+                getLevelSideSize(picture.getHeight(), level)
+        );
+    }
+
+    public int getLevelSideSize(int pictureSideSize, int level) {
+        return (pictureSideSize + (1 << level) - 1) >> level;
+    }
+
+    public String getLevelUrl(String url, int level) {
+        return url.replaceFirst("\\.bmp$", "") + "_" + level + ".bmp";
+    }
+
+    public boolean hasLevels(Picture picture) {
+        return getLevelsCount(picture.getWidth(), picture.getHeight()) > 0 && mappedCanvasCache.exists(getLevel(picture, 1));
+    }
+
+    public int getAvailableLevelsCount(Picture picture) {
+        return hasLevels(picture) ? getLevelsCount(picture.getWidth(), picture.getHeight()) : 0;
+    }
+
+    /**
+     * Recomputes the part of every level that lies under a saved fragment.
+     * The caller must hold the write lock of the fragment region.
+     */
+    public void update(Picture picture, int x, int y, int width, int height) throws IOException {
+        if (!hasLevels(picture)) return;
+        int fromX = Math.max(x, 0);
+        int fromY = Math.max(y, 0);
+        int toX = Math.min(x + width, picture.getWidth());
+        int toY = Math.min(y + height, picture.getHeight());
+
+        Picture source = picture;
+        int levelsCount = getLevelsCount(picture.getWidth(), picture.getHeight());
+        for (int level = 1; level <= levelsCount; level++) {
+            fromX /= 2;
+            fromY /= 2;
+            toX = (toX + 1) / 2;
+            toY = (toY + 1) / 2;
+            Picture target = getLevel(picture, level);
+            downsample(source, level == 1, target, fromX, fromY, toX, toY);
+            source = target;
+        }
+    }
+
+    private void downsample(Picture source, boolean isCanvas, Picture target, int fromX, int fromY, int toX, int toY) throws IOException {
+        Canvas sourceCanvas = mappedCanvasCache.get(source);
+        Canvas targetCanvas = mappedCanvasCache.get(target);
+        int sourceFromX = 2 * fromX;
+        int sourcePixels = Math.min(2 * toX, source.getWidth()) - sourceFromX;
+        byte[] upperRow = rowBufferPool.acquire(3 * sourcePixels);
+        byte[] lowerRow = rowBufferPool.acquire(3 * sourcePixels);
+        byte[] targetRow = rowBufferPool.acquire(3 * (toX - fromX));
+
+        try {
+            for (int targetY = fromY; targetY < toY; targetY++) {
+                readSourceRow(source, sourceCanvas, isCanvas, 2 * targetY, sourceFromX, upperRow, sourcePixels);
+                readSourceRow(source, sourceCanvas, isCanvas, Math.min(2 * targetY + 1, source.getHeight() - 1), sourceFromX, lowerRow, sourcePixels);
+                for (int i = 0; i < toX - fromX; i++) {
+                    int left = 3 * 2 * i;
+                    int right = 2 * i + 1 < sourcePixels ? left + 3 : left;
+                    for (int channel = 0; channel < 3; channel++) {
+                        int sum = (upperRow[left + channel] & 0xff) + (upperRow[right + channel] & 0xff)
+                                + (lowerRow[left + channel] & 0xff) + (lowerRow[right + channel] & 0xff);
+                        targetRow[3 * i + channel] = (byte) ((sum + 2) / 4);
+                    }
+                }
+                targetCanvas.writeRow(targetY, fromX, targetRow, 0, toX - fromX);
+            }
+        } finally {
+            rowBufferPool.release(upperRow);
+            rowBufferPool.release(lowerRow);
+            rowBufferPool.release(targetRow);
+        }
+    }
+
+    private void readSourceRow(Picture source, Canvas sourceCanvas, boolean isCanvas, int y, int x, byte[] row, int pixels) {
+        sourceCanvas.readRow(y, x, row, 0, pixels);
+        if (isCanvas) writeBehindBuffer.overlayRow(source, y, x, row, 0, pixels);
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Removes the files of deleted pictures in the background and reclaims files that no picture owns.
+ * <p>
+ * A deleted picture is only marked DELETED by the request, the reaper removes its files and its row later.
+ * Files are truncated in steps of {@code deletion.truncateStep} bytes at no more than
+ * {@code deletion.maxBytesPerSecond}, so freeing a multi-GB canvas does not stall the disk for other requests.
+ * Once the application is ready, every storage root is reconciled with the pictures table: files of pictures
+ * that have no row, left behind by a crash, are reclaimed the same way.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class PictureReaper {
+    private static final int PAGE_SIZE = 1000;
+    private static final Pattern PICTURE_FILE = Pattern.compile("([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})(_\\d+)?\\.(bmp|tiles)(\\.tmp)?");
+
+    @Value("${deletion.interval}")
+    private long interval;
+    @Value("${deletion.truncateStep}")
+    private long truncateStep;
+    @Value("${deletion.maxBytesPerSecond}")
+    private long maxBytesPerSecond;
+
+    private final PicturesRepository picturesRepository;
+    private final BitmapFileService bitmapFileService;
+    private final PictureRegionLocks pictureRegionLocks;
+    private final FragmentCache fragmentCache;
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final PictureMetadataCache pictureMetadataCache;
+    private final CanvasTiering canvasTiering;
+    private final PictureVersions pictureVersions;
+    private final StorageRoots storageRoots;
+
+    private ScheduledExecutorService reaper;
+
+    @PostConstruct
+    public void startReaper() {
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "picture-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reapDeletedPictures, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        reaper.shutdownNow();
+        reaper.awaitTermination(interval, TimeUnit.MILLISECONDS);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void reconcileOnStartup() {
+        long startTime = System.currentTimeMillis();
+        List<Path> folders = storageRoots.getRoots().stream().map(Path::of).collect(Collectors.toList());
+        reaper.execute(() -> reclaimOrphanedFiles(folders, startTime));
+    }
+
+    public void reapDeletedPictures() {
+        try {
+            picturesRepository.findAllByStatus(PictureStatus.DELETED).forEach(this::reap);
+        } catch (RuntimeException e) {
+            log.error("Unable to reap deleted pictures", e);
+        }
+    }
+
+    /**
+     * Removes the files of a deleted picture and then its row, so a crash in between leaves a row to retry with.
+     * The picture is retired first, its files are then truncated without holding any lock of the picture.
+     */
+    public void reap(Picture picture) {
+        try {
+            pictureRegionLocks.retire(picture);
+            // A mapping must be closed before its file shrinks under it
+            bitmapFileService.evictPicture(picture);
+            writeBehindBuffer.discard(picture);
+            fragmentCache.invalidate(picture.getId());
+            for (Path path : bitmapFileService.getPictureFiles(picture)) reclaim(path);
+            picturesRepository.deleteById(picture.getId());
+            pictureMetadataCache.invalidate(picture.getId());
+            pictureRegionLocks.remove(picture);
+            canvasTiering.forget(picture);
+            pictureVersions.remove(picture);
+            log.info("Picture " + picture.getId() + " reaped");
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to reap picture " + picture.getId(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void reclaimOrphanedFiles(Path folder, long startTime) {
+        reclaimOrphanedFiles(List.of(folder), startTime);
+    }
+
+    /**
+     * Reclaims the picture files in the folders that belong to no row. Files modified after {@code startTime}
+     * are kept, they may belong to a picture created while the table was being read.
+     */
+    public void reclaimOrphanedFiles(List<Path> folders, long startTime) {
+        Set<Path> knownUrls = new HashSet<>();
+        try {
+            Pageable pageable = PageRequest.of(0, PAGE_SIZE, Sort.by("id"));
+            Page<Picture> pictures;
+            do {
+                pictures = picturesRepository.findAll(pageable);
+                pictures.forEach(picture -> knownUrls.add(normalize(Path.of(picture.getUrl()))));
+                pageable = pictures.nextPageable();
+            } while (pictures.hasNext());
+        } catch (RuntimeException e) {
+            log.error("Unable to read the pictures table", e);
+            return;
+        }
+        for (Path folder : folders) {
+            if (Files.isDirectory(folder)) reclaimOrphanedFiles(folder, knownUrls, startTime);
+        }
+    }
+
+    private void reclaimOrphanedFiles(Path folder, Set<Path> knownUrls, long startTime) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                Matcher matcher = PICTURE_FILE.matcher(file.getFileName().toString());
+                if (!matcher.matches() || knownUrls.contains(normalize(file.resolveSibling(matcher.group(1) + ".bmp")))) continue;
+                if (Files.getLastModifiedTime(file).toMillis() >= startTime) continue;
+                reclaim(file);
+                log.info("Orphaned file " + file + " reclaimed");
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to reclaim orphaned files in " + folder, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reclaim(Path path) throws IOException, InterruptedException {
+        if (!Files.exists(path)) return;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            for (long size = channel.size(); size > 0; ) {
+                long step = Math.min(truncateStep, size);
+                size -= step;
+                channel.truncate(size);
+                TimeUnit.MILLISECONDS.sleep(step * 1000 / maxBytesPerSecond);
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.exceptions.ResourceNotFoundException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Striped read/write locks over square tiles of every picture.
+ * A fragment request locks only the tiles its rectangle covers, so writers to disjoint regions run in parallel
+ * and readers wait only for overlapping writers. Tiles are always taken in row-major order to avoid deadlocks.
+ * A deleted picture is retired: its locks are refused from then on, so nothing touches its files while they are freed.
+ */
+@Component
+public class PictureRegionLocks {
+    public static final RowsLock UNLOCKED = (y, height) -> new RegionLock(List.of(), () -> { });
+
+    @Value("${storage.lockTileSize}")
+    private int lockTileSize;
+
+    private final ConcurrentMap<Long, PictureLocks> locks = new ConcurrentHashMap<>();
+
+    public RegionLock lockForRead(Picture picture, int x, int y, int width, int height) {
+        return lock(picture, x, y, width, height, ReadWriteLock::readLock);
+    }
+
+    public RegionLock lockForWrite(Picture picture, int x, int y, int width, int height) {
+        return lock(picture, x, y, width, height, ReadWriteLock::writeLock);
+    }
+
+    /**
+     * Read locks over the columns {@code [x, x + width)} of a pyramid level, taken for the rows a strip of the fragment
+     * covers, so a long response can let writers in between its strips.
+     */
+    public RowsLock rowsForRead(Picture picture, int x, int width, int level) {
+        return (y, height) -> lockForRead(picture, x << level, y << level, width << level, height << level);
+    }
+
+    /**
+     * Waits until the requests holding locks of a deleted picture release them and refuses every later lock with a
+     * {@link ResourceNotFoundException}, so the canvas and the buffers of the picture are no longer used once this returns.
+     */
+    public void retire(Picture picture) {
+        PictureLocks pictureLocks = use(picture);
+        try (RegionLock ignored = acquire(picture, pictureLocks, 0, 0, picture.getWidth(), picture.getHeight(), ReadWriteLock::writeLock)) {
+            pictureLocks.retired = true;
+        }
+    }
+
+    /**
+     * Drops the locks of a deleted picture. Locks still held stay in place until the last of them is released,
+     * so a request locking the picture meanwhile still waits for the requests holding it.
+     */
+    public void remove(Picture picture) {
+        locks.computeIfPresent(picture.getId(), (id, pictureLocks) -> {
+            pictureLocks.removed = true;
+            return pictureLocks.users == 0 ? null : pictureLocks;
+        });
+    }
+
+    private RegionLock lock(Picture picture, int x, int y, int width, int height, Function<ReadWriteLock, Lock> lockType) {
+        PictureLocks pictureLocks = use(picture);
+        RegionLock regionLock = acquire(picture, pictureLocks, x, y, width, height, lockType);
+        if (pictureLocks.retired) {
+            regionLock.close();
+            throw new ResourceNotFoundException("Picture with id " + picture.getId() + " was not found");
+        }
+        return regionLock;
+    }
+
+    private PictureLocks use(Picture picture) {
+        // Users are counted inside compute, so the locks are never dropped between their lookup and their release
+        return locks.compute(picture.getId(), (id, existing) -> {
+            PictureLocks used = existing == null ? new PictureLocks(createLocks(picture)) : existing;
+            used.users++;
+            return used;
+        });
+    }
+
+    private RegionLock acquire(Picture picture, PictureLocks pictureLocks, int x, int y, int width, int height,
+                               Function<ReadWriteLock, Lock> lockType) {
+        int tilesInRow = getTilesCount(picture.getWidth());
+        int fromColumn = Math.max(x, 0) / lockTileSize;
+        int toColumn = (Math.min(x + width, picture.getWidth()) - 1) / lockTileSize;
+        int fromRow = Math.max(y, 0) / lockTileSize;
+        int toRow = (Math.min(y + height, picture.getHeight()) - 1) / lockTileSize;
+
+        List<Lock> acquiredLocks = new ArrayList<>(Math.max((toRow - fromRow + 1) * (toColumn - fromColumn + 1), 0));
+        RegionLock regionLock = new RegionLock(acquiredLocks, () -> release(picture.getId()));
+        try {
+            for (int row = fromRow; row <= toRow; row++) {
+                for (int column = fromColumn; column <= toColumn; column++) {
+                    Lock lock = lockType.apply(pictureLocks.tiles[row * tilesInRow + column]);
+                    lock.lock();
+                    acquiredLocks.add(lock);
+                }
+            }
+        } catch (RuntimeException e) {
+            regionLock.close();
+            throw e;
+        }
+        return regionLock;
+    }
+
+    private void release(Long id) {
+        locks.computeIfPresent(id, (key, pictureLocks) -> --pictureLocks.users == 0 && pictureLocks.removed ? null : pictureLocks);
+    }
+
+    private ReadWriteLock[] createLocks(Picture picture) {
+        ReadWriteLock[] pictureLocks = new ReadWriteLock[getTilesCount(picture.getWidth()) * getTilesCount(picture.getHeight())];
+        for (int i = 0; i < pictureLocks.length; i++) pictureLocks[i] = new ReentrantReadWriteLock();
+        return pictureLocks;
+    }
+
+    private int getTilesCount(int pictureSideSize) {
+        return (pictureSideSize + lockTileSize - 1) / lockTileSize;
+    }
+
+    /**
+     * Locks rows {@code [y, y + height)} of a fragment, in the coordinates of the fragment's level.
+     */
+    @FunctionalInterface
+    public interface RowsLock {
+        RegionLock lockRows(int y, int height);
+    }
+
+    public static class RegionLock implements AutoCloseable {
+        private final List<Lock> acquiredLocks;
+        private final Runnable release;
+
+        private RegionLock(List<Lock> acquiredLocks, Runnable release) {
+            this.acquiredLocks = acquiredLocks;
+            this.release = release;
+        }
+
+        @Override
+        public void close() {
+            for (int i = acquiredLocks.size() - 1; i >= 0; i--) acquiredLocks.get(i).unlock();
+            release.run();
+        }
+    }
+
+    private static class PictureLocks {
+        private final ReadWriteLock[] tiles;
+        private int users;                                                              // region locks not yet closed, changed only inside compute
+        private boolean removed;
+        private volatile boolean retired;                                               // set under the write locks of all tiles
+
+        private PictureLocks(ReadWriteLock[] tiles) {
+            this.tiles = tiles;
+        }
+    }
+}
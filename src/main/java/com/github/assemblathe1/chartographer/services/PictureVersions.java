@@ -0,0 +1,78 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Version counters of square tiles of every picture, so a client polling a fragment can be told cheaply that
+ * nothing under it has changed.
+ * <p>
+ * Versions come from one sequence shared by all pictures, and a save sets the tiles it covers to the next value,
+ * so the highest version under a rectangle grows with every save that touches it. A save bumps its tiles after
+ * the pixels are written and before its region lock is released, so an ETag is never newer than the fragment it
+ * is sent with. Versions are kept in memory only; ETags also carry the start of the process and all of them
+ * change on a restart.
+ */
+@Component
+public class PictureVersions {
+    @Value("${versions.tileSize}")
+    private int tileSize;
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentMap<Long, AtomicLongArray> versions = new ConcurrentHashMap<>();
+
+    public void bump(Picture picture, int x, int y, int width, int height) {
+        AtomicLongArray tiles = versions.computeIfAbsent(picture.getId(),
+                id -> new AtomicLongArray(getTilesCount(picture.getWidth()) * getTilesCount(picture.getHeight())));
+        long version = sequence.incrementAndGet();
+        int tilesInRow = getTilesCount(picture.getWidth());
+        for (int row = getFromTile(y); row <= getToTile(y, height, picture.getHeight()); row++) {
+            for (int column = getFromTile(x); column <= getToTile(x, width, picture.getWidth()); column++) {
+                tiles.accumulateAndGet(row * tilesInRow + column, version, Math::max);
+            }
+        }
+    }
+
+    /**
+     * The highest version of the tiles under the rectangle, in canvas pixels.
+     */
+    public long getVersion(Picture picture, int x, int y, int width, int height) {
+        AtomicLongArray tiles = versions.get(picture.getId());
+        if (tiles == null) return 0;
+        long version = 0;
+        int tilesInRow = getTilesCount(picture.getWidth());
+        for (int row = getFromTile(y); row <= getToTile(y, height, picture.getHeight()); row++) {
+            for (int column = getFromTile(x); column <= getToTile(x, width, picture.getWidth()); column++) {
+                version = Math.max(version, tiles.get(row * tilesInRow + column));
+            }
+        }
+        return version;
+    }
+
+    public String getETag(Picture picture, int x, int y, int width, int height, String representation) {
+        return "\"" + epoch + "-" + Long.toString(getVersion(picture, x, y, width, height), 36) + "-" + representation + "\"";
+    }
+
+    public void remove(Picture picture) {
+        versions.remove(picture.getId());
+    }
+
+    private int getFromTile(int from) {
+        return Math.max(from, 0) / tileSize;
+    }
+
+    private int getToTile(int from, int length, int pictureSideSize) {
+        return (Math.min(from + length, pictureSideSize) - 1) / tileSize;
+    }
+
+    private int getTilesCount(int pictureSideSize) {
+        return (pictureSideSize + tileSize - 1) / tileSize;
+    }
+}
@@ -1,26 +1,50 @@
 package com.github.assemblathe1.chartographer.services;
 
+import com.github.assemblathe1.chartographer.dtos.FragmentFormat;
+import com.github.assemblathe1.chartographer.dtos.FragmentResult;
+import com.github.assemblathe1.chartographer.dtos.FragmentRows;
+import com.github.assemblathe1.chartographer.dtos.PictureRegion;
 import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
 import com.github.assemblathe1.chartographer.exceptions.ResourceNotFoundException;
+import com.github.assemblathe1.chartographer.exceptions.ResponseAbortedException;
+import com.github.assemblathe1.chartographer.exceptions.ValidationException;
 import com.github.assemblathe1.chartographer.exceptions.WritingToDiskException;
+import com.github.assemblathe1.chartographer.metrics.CallCountingOutputStream;
+import com.github.assemblathe1.chartographer.metrics.ChartographerMetrics;
 import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
-import com.github.assemblathe1.chartographer.utils.StartupArgumentsRunner;
 import com.github.assemblathe1.chartographer.validators.PictureValidator;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 @Service
 @RequiredArgsConstructor
 public class PicturesService {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
     @Value("${upload.maxPictureWidth}")
     private int maxPictureWidth;
     @Value("${upload.maxPictureHeight}")
@@ -29,66 +53,449 @@ public class PicturesService {
     private int maxFragmentWidth;
     @Value("${upload.maxFragmentHeight}")
     private int maxFragmentHeight;
+    @Value("${upload.maxRegionsCount}")
+    private int maxRegionsCount;
+    @Value("${upload.maxRegionsPixels}")
+    private long maxRegionsPixels;
 
     private final PicturesRepository picturesRepository;
     private final PictureValidator pictureValidator;
-    private final StartupArgumentsRunner startupArgumentsRunner;
+    private final StorageRoots storageRoots;
     private final BitmapFileService bitmapFileService;
+    private final PictureRegionLocks pictureRegionLocks;
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final PicturePyramid picturePyramid;
+    private final FragmentCache fragmentCache;
+    private final PictureMetadataCache pictureMetadataCache;
+    private final ChartographerMetrics chartographerMetrics;
+    private final CanvasTiering canvasTiering;
+    private final CanvasAllocator canvasAllocator;
+    private final FragmentJournal fragmentJournal;
+    private final PictureVersions pictureVersions;
 
-    @Transactional
+    /**
+     * Saves a PENDING picture and returns its id at once, the canvas is allocated by {@link CanvasAllocator}
+     * on the storage root chosen by {@link StorageRoots}.
+     */
     public Long createPicture(int width, int height) {
-        String picturesFolder = startupArgumentsRunner.getFolder();
-        String url = picturesFolder.length() > 2
-                ? createBMPFilePath(picturesFolder.substring(1, picturesFolder.length() - 1))
-                : createBMPFilePath(System.getProperty("java.io.tmpdir") + "/pictures");
-
         pictureValidator.validate(width, height, maxPictureWidth, maxPictureHeight);
-        Picture savedPicture = picturesRepository.save(new Picture(url, width, height));
+        String fileName = UUID.randomUUID() + ".bmp";
+        String storageRoot = storageRoots.choose(fileName, width, height);
+        String url = createBMPFilePath(storageRoot, fileName);
+
+        Picture savedPicture;
         try {
-            bitmapFileService.createPicture(savedPicture.getWidth(), savedPicture.getHeight(), savedPicture.getUrl());
-        } catch (IOException e) {
-            throw new WritingToDiskException("Internal Server Error");
+            savedPicture = picturesRepository.save(new Picture(null, url, width, height, PictureStatus.PENDING, storageRoot));
+        } finally {
+            storageRoots.release(storageRoot, width, height);
         }
+        pictureMetadataCache.put(savedPicture);
+        canvasAllocator.allocate(savedPicture);
         return savedPicture.getId();
     }
 
-    public void savePictureFragment(String id, int x, int y, int width, int height, MultipartFile pictureFragment) {
-        Picture picture = findPictureById(id);
+    /**
+     * Validates the request at once and returns the disk work, to be run on the disk I/O executor.
+     */
+    public Callable<Void> savePictureFragment(String id, int x, int y, int width, int height, MultipartFile pictureFragment) {
+        Picture picture = findReadyPictureById(id);
+        pictureValidator.validate(x, y, width, height, maxPictureWidth, maxPictureHeight, picture.getWidth(), picture.getHeight());
+        return () -> {
+            try (InputStream inputStream = pictureFragment.getInputStream()) {
+                savePictureFragment(picture, x, y, width, height, inputStream, pictureFragment.getSize());
+            } catch (IOException e) {
+                throw new WritingToDiskException("Internal Server Error");
+            }
+            return null;
+        };
+    }
+
+    public Callable<Void> savePictureFragment(String id, int x, int y, int width, int height, InputStream pictureFragment) {
+        return savePictureFragment(id, x, y, width, height, pictureFragment, BitmapFileService.UNKNOWN_LENGTH);
+    }
 
+    /**
+     * Like the multipart upload, but the BMP is the request body of {@code length} bytes, as given by Content-Length.
+     * The header is parsed from the request stream and the rows go straight to the canvas as they arrive, with no copy
+     * in memory or on disk. A declared length too short for the rows of the fragment is rejected before anything is written.
+     */
+    public Callable<Void> savePictureFragment(String id, int x, int y, int width, int height, InputStream pictureFragment, long length) {
+        Picture picture = findReadyPictureById(id);
         pictureValidator.validate(x, y, width, height, maxPictureWidth, maxPictureHeight, picture.getWidth(), picture.getHeight());
-        try {
-            bitmapFileService.savePictureFragment(x, y, width, height, pictureFragment, picture);
-        } catch (IOException e) {
-            throw new WritingToDiskException("Internal Server Error");
+        return () -> {
+            try {
+                savePictureFragment(picture, x, y, width, height, pictureFragment, length);
+            } catch (IOException e) {
+                throw new WritingToDiskException("Internal Server Error");
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Applies a stream of fragment records in the order they arrive, so a later fragment always wins over an earlier
+     * one. A record is five big-endian ints x, y, width, height and the length of the BMP, followed by the BMP itself.
+     * An invalid fragment is reported in its result and does not stop the batch; a broken record does, and so does
+     * a fragment that fails to be saved: the fragments applied before it keep their results, and it is reported as a 500.
+     */
+    public Callable<List<FragmentResult>> savePictureFragments(String id, InputStream pictureFragments) {
+        Picture picture = findReadyPictureById(id);
+        return () -> savePictureFragments(picture, pictureFragments);
+    }
+
+    public StreamingResponseBody getPictureFragment(String id, int x, int y, int width, int height, int level) {
+        return getPictureFragment(id, x, y, width, height, level, FragmentFormat.BMP);
+    }
+
+    /**
+     * Streams the fragment in the given format. Only BMP fragments go through the fragment cache, a PNG is encoded
+     * from the canvas on every request. No read lock is held while bytes go to the client: cached fragments are rendered
+     * into memory first, the others are rendered and written strip by strip.
+     */
+    public StreamingResponseBody getPictureFragment(String id, int x, int y, int width, int height, int level, FragmentFormat format) {
+        Timer.Sample sample = chartographerMetrics.startTimer();
+        Picture picture = findReadyPictureById(id);
+        pictureValidator.validateLevel(level, level == 0 ? 0 : picturePyramid.getAvailableLevelsCount(picture));
+        Picture levelPicture = picturePyramid.getLevel(picture, level);
+        pictureValidator.validate(x, y, width, height, maxFragmentWidth, maxFragmentHeight, levelPicture.getWidth(), levelPicture.getHeight());
+        if (format == FragmentFormat.PNG) {
+            return measure(sample, ChartographerMetrics.GET, picture, levelPicture, new PictureRegion(x, y, width, height), outputStream ->
+                    bitmapFileService.getPngPictureFragment(x, y, width, height, picture, level, outputStream,
+                            pictureRegionLocks.rowsForRead(picture, x, width, level)));
         }
+        FragmentCache.FragmentKey key = new FragmentCache.FragmentKey(picture.getId(), x, y, width, height, level);
+        byte[] cachedFragment = fragmentCache.get(key);
+        if (cachedFragment != null) {
+            return measure(sample, ChartographerMetrics.GET, picture, levelPicture, new PictureRegion(x, y, width, height), outputStream -> outputStream.write(cachedFragment));
+        }
+
+        long fragmentLength = getPictureFragmentLength(width, height);
+        if (!fragmentCache.isCacheable(fragmentLength)) {
+            // Locked strip by strip, the rows are never locked while they are written to the client
+            return measure(sample, ChartographerMetrics.GET, picture, levelPicture, new PictureRegion(x, y, width, height), outputStream ->
+                    bitmapFileService.getPictureFragment(x, y, width, height, picture, level, outputStream,
+                            pictureRegionLocks.rowsForRead(picture, x, width, level)));
+        }
+        return measure(sample, ChartographerMetrics.GET, picture, levelPicture, new PictureRegion(x, y, width, height), outputStream -> {
+            byte[] renderedFragment;
+            try (PictureRegionLocks.RegionLock ignored = pictureRegionLocks.lockForRead(picture, x << level, y << level, width << level, height << level)) {
+                ByteArrayOutputStream fragment = new ByteArrayOutputStream((int) fragmentLength);
+                bitmapFileService.getPictureFragment(x, y, width, height, picture, level, fragment);
+                renderedFragment = fragment.toByteArray();
+                fragmentCache.put(key, renderedFragment);
+            }
+            outputStream.write(renderedFragment);
+        });
     }
 
-    public ByteArrayOutputStream getPictureFragment(String id, int x, int y, int width, int height) {
-        Picture picture = findPictureById(id);
-        pictureValidator.validate(x, y, width, height, maxFragmentWidth, maxFragmentHeight, picture.getWidth(), picture.getHeight());
-        ByteArrayOutputStream byteArrayOutputStream;
-        try {
-            byteArrayOutputStream = bitmapFileService.getPictureFragment(x, y, width, height, picture);
-        } catch (IOException e) {
-            throw new WritingToDiskException("Internal Server Error");
+    /**
+     * Validates the request like {@link #getPictureFragment} and returns the ETag of the fragment, which changes
+     * whenever a save touches the canvas area under it.
+     */
+    public String getPictureFragmentETag(String id, int x, int y, int width, int height, int level, FragmentFormat format) {
+        Picture picture = findReadyPictureById(id);
+        pictureValidator.validateLevel(level, level == 0 ? 0 : picturePyramid.getAvailableLevelsCount(picture));
+        Picture levelPicture = picturePyramid.getLevel(picture, level);
+        pictureValidator.validate(x, y, width, height, maxFragmentWidth, maxFragmentHeight, levelPicture.getWidth(), levelPicture.getHeight());
+        return pictureVersions.getETag(picture, x << level, y << level, width << level, height << level, format.name().toLowerCase());
+    }
+
+    public long getPictureFragmentLength(int width, int height) {
+        return BitmapFileService.getBMPFileLength(width, height);
+    }
+
+    /**
+     * Parses regions written as {@code x,y,width,height} and separated by semicolons.
+     */
+    public List<PictureRegion> parseRegions(String regions) {
+        List<String> errors = new ArrayList<>();
+        List<PictureRegion> pictureRegions = new ArrayList<>();
+        for (String region : regions.split(";")) {
+            String[] values = region.split(",");
+            try {
+                if (values.length != 4) throw new NumberFormatException();
+                pictureRegions.add(new PictureRegion(
+                        Integer.parseInt(values[0].trim()),
+                        Integer.parseInt(values[1].trim()),
+                        Integer.parseInt(values[2].trim()),
+                        Integer.parseInt(values[3].trim())
+                ));
+            } catch (NumberFormatException e) {
+                errors.add("Region " + region + " must be written as x,y,width,height");
+            }
+        }
+        if (!errors.isEmpty()) throw new ValidationException(errors);
+        return pictureRegions;
+    }
+
+    /**
+     * Streams the fragments of several regions as parts of one multipart/mixed response, in the order of the regions.
+     * Cached fragments are written from the cache. A missing fragment too big for the cache is streamed strip by strip
+     * like a single fragment. Other missing regions that follow each other are rendered together under one read lock
+     * over their bounds, reading their rows once in file order, as long as they fit one cache entry; so only one such
+     * group is held in memory at a time.
+     */
+    public StreamingResponseBody getPictureFragments(String id, List<PictureRegion> regions, int level, String boundary) {
+        Timer.Sample sample = chartographerMetrics.startTimer();
+        Picture picture = findReadyPictureById(id);
+        pictureValidator.validateLevel(level, level == 0 ? 0 : picturePyramid.getAvailableLevelsCount(picture));
+        Picture levelPicture = picturePyramid.getLevel(picture, level);
+        long regionsPixels = regions.stream().mapToLong(region -> (long) region.getWidth() * region.getHeight()).sum();
+        pictureValidator.validateRegions(regions.size(), regionsPixels, maxRegionsCount, maxRegionsPixels);
+        for (PictureRegion region : regions) {
+            pictureValidator.validate(region.getX(), region.getY(), region.getWidth(), region.getHeight(),
+                    maxFragmentWidth, maxFragmentHeight, levelPicture.getWidth(), levelPicture.getHeight());
+        }
+        byte[][] fragments = new byte[regions.size()][];
+        for (int i = 0; i < regions.size(); i++) {
+            fragments[i] = fragmentCache.get(getFragmentKey(picture, regions.get(i), level));
+        }
+
+        return measure(sample, ChartographerMetrics.GET_REGIONS, picture, levelPicture, getBounds(regions), responseStream -> {
+            CallCountingOutputStream outputStream = new CallCountingOutputStream(responseStream);
+            int rows = 0;
+            long bytes = 0;
+            for (int i = 0; i < regions.size(); ) {
+                PictureRegion region = regions.get(i);
+                long fragmentLength = getPictureFragmentLength(region.getWidth(), region.getHeight());
+                if (fragments[i] == null && !fragmentCache.isCacheable(fragmentLength)) {
+                    // Locked strip by strip, the rows are never locked while they are written to the client
+                    outputStream.write(createPartHeader(id, region, level, boundary));
+                    rows += bitmapFileService.writePictureFragment(region.getX(), region.getY(), region.getWidth(), region.getHeight(),
+                            picture, level, outputStream, pictureRegionLocks.rowsForRead(picture, region.getX(), region.getWidth(), level));
+                    outputStream.write(CRLF);
+                    bytes += fragmentLength;
+                    i++;
+                    continue;
+                }
+                // Missing regions that follow each other are rendered together while they fit one cache entry
+                int to = i + 1;
+                long groupLength = fragmentLength;
+                while (fragments[i] == null && to < regions.size() && fragments[to] == null) {
+                    long nextLength = getPictureFragmentLength(regions.get(to).getWidth(), regions.get(to).getHeight());
+                    if (!fragmentCache.isCacheable(groupLength + nextLength)) break;
+                    groupLength += nextLength;
+                    to++;
+                }
+                byte[][] groupFragments = Arrays.copyOfRange(fragments, i, to);
+                if (fragments[i] == null) {
+                    List<PictureRegion> group = regions.subList(i, to);
+                    PictureRegion bounds = getBounds(group);
+                    try (PictureRegionLocks.RegionLock ignored = pictureRegionLocks.lockForRead(picture,
+                            bounds.getX() << level, bounds.getY() << level, bounds.getWidth() << level, bounds.getHeight() << level)) {
+                        rows += bitmapFileService.getPictureFragments(group, picture, level, groupFragments);
+                        for (int j = 0; j < group.size(); j++) fragmentCache.put(getFragmentKey(picture, group.get(j), level), groupFragments[j]);
+                    }
+                }
+                for (int j = 0; j < groupFragments.length; j++) {
+                    outputStream.write(createPartHeader(id, regions.get(i + j), level, boundary));
+                    outputStream.write(groupFragments[j]);
+                    outputStream.write(CRLF);
+                    bytes += groupFragments[j].length;
+                    // The response holds no more than the fragments of one group
+                    fragments[i + j] = null;
+                }
+                i = to;
+            }
+            outputStream.write(createClosingBoundary(boundary));
+            outputStream.flush();
+            chartographerMetrics.recordFragmentTransfer(ChartographerMetrics.GET_REGIONS, bytes, rows, outputStream.getCalls());
+        });
+    }
+
+    public long getPictureFragmentsLength(String id, List<PictureRegion> regions, int level, String boundary) {
+        long length = createClosingBoundary(boundary).length;
+        for (PictureRegion region : regions) {
+            length += createPartHeader(id, region, level, boundary).length
+                    + getPictureFragmentLength(region.getWidth(), region.getHeight())
+                    + CRLF.length;
         }
-        return byteArrayOutputStream;
+        return length;
     }
 
+    /**
+     * Marks the picture as DELETED and returns, its files and its row are removed later by {@link PictureReaper}.
+     */
     public void deletePicture(String id) {
-        Picture picture = findPictureById(id);
-        if (bitmapFileService.deletePicture(picture)) picturesRepository.deleteById(Long.valueOf(id));
+        Picture picture = canvasAllocator.checkAllocated(findPictureById(id));
+        Picture deletedPicture = new Picture(picture.getId(), picture.getUrl(), picture.getWidth(), picture.getHeight(), PictureStatus.DELETED, picture.getStorageRoot());
+        // New requests no longer find the picture, the ones that found it before are drained and then refused their locks
+        picturesRepository.save(deletedPicture);
+        pictureMetadataCache.put(deletedPicture);
+        pictureRegionLocks.retire(picture);
+        writeBehindBuffer.discard(picture);
+        fragmentCache.invalidate(picture.getId());
     }
 
     public Picture findPictureById(String id) {
-        return picturesRepository
-                .findById(Long.valueOf(id))
+        Long pictureId = Long.valueOf(id);
+        return pictureMetadataCache
+                .get(pictureId, () -> chartographerMetrics.recordRepositoryLookup(() -> picturesRepository.findById(pictureId)))
+                .filter(picture -> picture.getStatus() != PictureStatus.DELETED)
                 .orElseThrow(() -> new ResourceNotFoundException("Picture with id " + id + " was not found"));
     }
 
-    private String createBMPFilePath(String savingFolder) {
+    /**
+     * Finds a picture whose canvas can be read and written. A picture that is still being created is answered with
+     * 503 at once, the request thread never waits for its allocation.
+     */
+    public Picture findReadyPictureById(String id) {
+        return canvasAllocator.checkReady(findPictureById(id));
+    }
+
+    private void savePictureFragment(Picture picture, int x, int y, int width, int height, InputStream pictureFragment, long length) throws IOException {
+        Timer.Sample sample = chartographerMetrics.startTimer();
+        chartographerMetrics.requestStarted(picture);
+        try {
+            if (fragmentJournal.isJournaled(width, height)) {
+                // A record is built whole before any lock is taken, it holds at most journal.maxRecordPixels pixels;
+                // the fragment is acknowledged once its record is durable
+                FragmentRows fragmentRows = bitmapFileService.readPictureFragment(x, y, width, height, pictureFragment, picture, length);
+                long journalPosition;
+                // The region lock comes first, a writer waiting for slow readers must not hold up checkpoints
+                try (PictureRegionLocks.RegionLock ignored = canvasTiering.lockForWrite(picture, x, y, width, height);
+                     FragmentJournal.AppendLock ignoredAppend = fragmentJournal.lockForAppend()) {
+                    journalPosition = fragmentJournal.append(picture, fragmentRows);
+                    bitmapFileService.writePictureRows(fragmentRows, picture);
+                    bitmapFileService.updatePictureLevels(x, y, width, height, picture);
+                    fragmentCache.invalidate(picture.getId(), x, y, width, height);
+                    pictureVersions.bump(picture, x, y, width, height);
+                }
+                fragmentJournal.commit(journalPosition);
+                return;
+            }
+            if (fragmentJournal.isEnabled()) {
+                saveChunkedPictureFragment(picture, x, y, width, height, pictureFragment, length);
+                return;
+            }
+            try (PictureRegionLocks.RegionLock ignored = canvasTiering.lockForWrite(picture, x, y, width, height)) {
+                bitmapFileService.savePictureFragment(x, y, width, height, pictureFragment, picture, length);
+                bitmapFileService.updatePictureLevels(x, y, width, height, picture);
+                fragmentCache.invalidate(picture.getId(), x, y, width, height);
+                pictureVersions.bump(picture, x, y, width, height);
+            }
+        } finally {
+            chartographerMetrics.requestFinished(picture);
+            chartographerMetrics.stopFragmentTimer(sample, ChartographerMetrics.SAVE, picture, x, y, width, height);
+        }
+    }
+
+    /**
+     * Journals a fragment too big for one record in chunks, read band by band before any lock is taken. Its end record
+     * is made durable before the chunks are read back and applied, so a crash leaves the fragment either replayed
+     * whole or not applied at all.
+     */
+    private void saveChunkedPictureFragment(Picture picture, int x, int y, int width, int height, InputStream pictureFragment, long length) throws IOException {
+        long fragment = fragmentJournal.beginFragment();
+        try {
+            List<Long> chunkOffsets = new ArrayList<>();
+            bitmapFileService.readPictureFragment(x, y, width, height, pictureFragment, picture, length, fragmentJournal.getChunkRows(width),
+                    fragmentRows -> chunkOffsets.add(fragmentJournal.appendChunk(fragment, picture, fragmentRows)));
+            try (PictureRegionLocks.RegionLock ignored = canvasTiering.lockForWrite(picture, x, y, width, height);
+                 FragmentJournal.AppendLock ignoredAppend = fragmentJournal.lockForAppend()) {
+                fragmentJournal.commit(fragmentJournal.appendEnd(fragment, picture, x, y, width, height));
+                for (long chunkOffset : chunkOffsets) bitmapFileService.writePictureRows(fragmentJournal.readChunk(chunkOffset), picture);
+                bitmapFileService.updatePictureLevels(x, y, width, height, picture);
+                fragmentCache.invalidate(picture.getId(), x, y, width, height);
+                pictureVersions.bump(picture, x, y, width, height);
+            }
+        } finally {
+            fragmentJournal.endFragment();
+        }
+    }
+
+    private List<FragmentResult> savePictureFragments(Picture picture, InputStream pictureFragments) {
+        List<FragmentResult> results = new ArrayList<>();
+        DataInputStream records = new DataInputStream(pictureFragments);
+        try {
+            // The end of the body is only allowed between records
+            for (int next = records.read(); next != -1; next = records.read()) {
+                int x = next << 24 | records.readUnsignedByte() << 16 | records.readUnsignedByte() << 8 | records.readUnsignedByte();
+                int y = records.readInt();
+                int width = records.readInt();
+                int height = records.readInt();
+                int length = records.readInt();
+                if (length < 0) {
+                    results.add(new FragmentResult(x, y, width, height, HttpStatus.BAD_REQUEST.value(), List.of("Fragment record has negative length")));
+                    break;
+                }
+                BoundedInputStream boundedFragment = new BoundedInputStream(records, length);
+                boundedFragment.setPropagateClose(false);
+                CountingInputStream pictureFragment = new CountingInputStream(boundedFragment);
+                FragmentResult result = saveBatchFragment(picture, x, y, width, height, pictureFragment, length);
+                results.add(result);
+                if (result.getStatusCode() == HttpStatus.INTERNAL_SERVER_ERROR.value()) break;
+                IOUtils.consume(pictureFragment);
+                if (pictureFragment.getByteCount() < length) throw new EOFException();
+            }
+        } catch (EOFException e) {
+            results.add(new FragmentResult(0, 0, 0, 0, HttpStatus.BAD_REQUEST.value(), List.of("Batch ends in the middle of a fragment record")));
+        } catch (IOException e) {
+            results.add(new FragmentResult(0, 0, 0, 0, HttpStatus.INTERNAL_SERVER_ERROR.value(), List.of("Batch could not be read to the end")));
+        }
+        return results;
+    }
+
+    private FragmentResult saveBatchFragment(Picture picture, int x, int y, int width, int height, InputStream pictureFragment, long length) {
+        try {
+            pictureValidator.validate(x, y, width, height, maxPictureWidth, maxPictureHeight, picture.getWidth(), picture.getHeight());
+            savePictureFragment(picture, x, y, width, height, pictureFragment, length);
+            return new FragmentResult(x, y, width, height, HttpStatus.OK.value(), List.of());
+        } catch (ValidationException e) {
+            return new FragmentResult(x, y, width, height, HttpStatus.BAD_REQUEST.value(), e.getErrorFieldsMessages());
+        } catch (IOException | WritingToDiskException e) {
+            return new FragmentResult(x, y, width, height, HttpStatus.INTERNAL_SERVER_ERROR.value(), List.of("Internal Server Error"));
+        }
+    }
+
+    /**
+     * Times the response body and maps its failures: before the first byte to a 500, afterwards to an aborted
+     * response, because the status and the length of the body have already been sent.
+     */
+    private StreamingResponseBody measure(Timer.Sample sample, String operation, Picture picture, Picture levelPicture, PictureRegion region, StreamingResponseBody fragment) {
+        return outputStream -> {
+            chartographerMetrics.requestStarted(picture);
+            CountingOutputStream countingStream = new CountingOutputStream(outputStream);
+            try {
+                fragment.writeTo(countingStream);
+            } catch (IOException | WritingToDiskException e) {
+                if (countingStream.getByteCount() == 0) throw new WritingToDiskException("Internal Server Error");
+                throw new ResponseAbortedException("Fragment of picture " + picture.getId() + " was cut off", e);
+            } finally {
+                chartographerMetrics.requestFinished(picture);
+                chartographerMetrics.stopFragmentTimer(sample, operation, levelPicture, region.getX(), region.getY(), region.getWidth(), region.getHeight());
+            }
+        };
+    }
+
+    private FragmentCache.FragmentKey getFragmentKey(Picture picture, PictureRegion region, int level) {
+        return new FragmentCache.FragmentKey(picture.getId(), region.getX(), region.getY(), region.getWidth(), region.getHeight(), level);
+    }
+
+    private PictureRegion getBounds(List<PictureRegion> regions) {
+        int fromX = regions.stream().mapToInt(PictureRegion::getX).min().orElse(0);
+        int fromY = regions.stream().mapToInt(PictureRegion::getY).min().orElse(0);
+        int toX = regions.stream().mapToInt(region -> region.getX() + region.getWidth()).max().orElse(0);
+        int toY = regions.stream().mapToInt(region -> region.getY() + region.getHeight()).max().orElse(0);
+        return new PictureRegion(fromX, fromY, toX - fromX, toY - fromY);
+    }
+
+    private byte[] createPartHeader(String id, PictureRegion region, int level, String boundary) {
+        return ("--" + boundary + "\r\n"
+                + "Content-Type: image/bmp\r\n"
+                + "Content-Location: /chartas/" + id + "/?x=" + region.getX() + "&y=" + region.getY()
+                + "&width=" + region.getWidth() + "&height=" + region.getHeight() + "&level=" + level + "\r\n"
+                + "Content-Length: " + getPictureFragmentLength(region.getWidth(), region.getHeight()) + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] createClosingBoundary(String boundary) {
+        return ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private String createBMPFilePath(String savingFolder, String fileName) {
         File defaultPicturesDirectory = new File(savingFolder);
-        if (!defaultPicturesDirectory.exists()) defaultPicturesDirectory.mkdir();
-        return Path.of(defaultPicturesDirectory.getPath() + "/" + UUID.randomUUID() + ".bmp").toString();
+        if (!defaultPicturesDirectory.exists()) defaultPicturesDirectory.mkdirs();
+        return Path.of(defaultPicturesDirectory.getPath() + "/" + fileName).toString();
     }
 }
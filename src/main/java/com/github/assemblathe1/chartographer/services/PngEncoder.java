@@ -0,0 +1,118 @@
+package com.github.assemblathe1.chartographer.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Streams a 24-bit PNG row by row, so a fragment is encoded without being held in memory.
+ * <p>
+ * Rows are taken top-down in the BGR order of the canvas and written with the Sub filter, which turns flat
+ * areas into runs of zeros for deflate. The deflated stream is cut into IDAT chunks of {@code CHUNK_SIZE} bytes.
+ */
+public class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int CHUNK_SIZE = 65536;
+    private static final int FILTER_SUB = 1;
+    private static final byte[] IHDR = "IHDR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDAT = "IDAT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IEND = "IEND".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream outputStream;
+    private final Deflater deflater;
+    private final DeflaterOutputStream imageData;
+    private final byte[] filteredRow;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private final byte[] field = new byte[4];
+    private final CRC32 checksum = new CRC32();
+    private int chunkLength;
+
+    public PngEncoder(OutputStream outputStream, int width, int height, int compressionLevel) throws IOException {
+        this.outputStream = outputStream;
+        this.deflater = new Deflater(compressionLevel);
+        this.imageData = new DeflaterOutputStream(new ChunkOutputStream(), deflater, CHUNK_SIZE);
+        this.filteredRow = new byte[1 + 3 * width];
+        this.filteredRow[0] = FILTER_SUB;
+
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8;                                                                  // bits per channel
+        header[9] = 2;                                                                  // color type RGB
+        outputStream.write(SIGNATURE);
+        writeChunk(IHDR, header, header.length);
+    }
+
+    public void writeRow(byte[] row, int offset) throws IOException {
+        int previousR = 0;
+        int previousG = 0;
+        int previousB = 0;
+        for (int i = 0; i < filteredRow.length - 1; i += 3) {
+            int b = row[offset + i];
+            int g = row[offset + i + 1];
+            int r = row[offset + i + 2];
+            filteredRow[1 + i] = (byte) (r - previousR);
+            filteredRow[2 + i] = (byte) (g - previousG);
+            filteredRow[3 + i] = (byte) (b - previousB);
+            previousR = r;
+            previousG = g;
+            previousB = b;
+        }
+        imageData.write(filteredRow);
+    }
+
+    public void finish() throws IOException {
+        try {
+            imageData.finish();
+            if (chunkLength > 0) writeChunk(IDAT, chunk, chunkLength);
+            writeChunk(IEND, chunk, 0);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeChunk(byte[] chunkType, byte[] data, int length) throws IOException {
+        checksum.reset();
+        checksum.update(chunkType);
+        checksum.update(data, 0, length);
+
+        writeInt(field, 0, length);
+        outputStream.write(field);
+        outputStream.write(chunkType);
+        outputStream.write(data, 0, length);
+        writeInt(field, 0, (int) checksum.getValue());
+        outputStream.write(field);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private class ChunkOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int copied = Math.min(length, CHUNK_SIZE - chunkLength);
+                System.arraycopy(bytes, offset, chunk, chunkLength, copied);
+                chunkLength += copied;
+                offset += copied;
+                length -= copied;
+                if (chunkLength == CHUNK_SIZE) {
+                    writeChunk(IDAT, chunk, chunkLength);
+                    chunkLength = 0;
+                }
+            }
+        }
+    }
+}
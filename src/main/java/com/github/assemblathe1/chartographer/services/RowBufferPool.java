@@ -0,0 +1,60 @@
+package com.github.assemblathe1.chartographer.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reusable row buffers for the fragment pipeline, each long enough for a padded BMP row of the widest picture.
+ * <p>
+ * A buffer is taken for a whole request and given back when the request is done, so steady-state reads and saves
+ * allocate no row arrays. At most {@code buffers.poolSize} buffers are kept, one per disk I/O thread is enough;
+ * a request that finds the pool empty gets a new buffer, which joins the pool when it is released.
+ * Rows outside the picture are written from one shared zero buffer, which must never be written to.
+ */
+@Component
+public class RowBufferPool {
+    @Value("${buffers.poolSize}")
+    private int poolSize;
+    @Value("${upload.maxPictureWidth}")
+    private int maxPictureWidth;
+
+    private ArrayBlockingQueue<byte[]> buffers;
+    private byte[] zeros;
+    private int bufferLength;
+
+    @PostConstruct
+    public void createPool() {
+        // 3 bytes per pixel and up to 3 bytes of padding; also holds any BMP header up to BMP_MAX_SIZE_HEADER
+        bufferLength = Math.max(3 * maxPictureWidth + 3, 4096);
+        buffers = new ArrayBlockingQueue<>(poolSize);
+        zeros = new byte[bufferLength];
+    }
+
+    /**
+     * A buffer of at least {@code length} bytes with undefined content. Lengths beyond the pooled buffer length
+     * get a buffer of their own, which is dropped on release.
+     */
+    public byte[] acquire(int length) {
+        if (length > bufferLength) return new byte[length];
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferLength];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferLength) buffers.offer(buffer);
+    }
+
+    /**
+     * The shared zero buffer if it is long enough, otherwise a new one. Callers only read from it.
+     */
+    public byte[] getZeros(int length) {
+        return length <= bufferLength ? zeros : new byte[length];
+    }
+
+    public int getPooledCount() {
+        return buffers.size();
+    }
+}
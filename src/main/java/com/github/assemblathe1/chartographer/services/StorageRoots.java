@@ -0,0 +1,88 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import com.github.assemblathe1.chartographer.utils.StartupArgumentsRunner;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Folders that pictures are spread over, one per disk, given as the startup arguments.
+ * <p>
+ * The root of a new picture is chosen by {@code storage.placement} and recorded in its row. The picture url
+ * keeps the full path of the canvas, so lookups and deletes reach the right disk without resolving the root again,
+ * and pictures stay readable after the list of roots changes.
+ * <p>
+ * Least used placement counts the pixels of READY and PENDING pictures only. A chosen root is reserved for the pixels
+ * of the new picture until its row is saved, so concurrent creates see each other and spread over the roots.
+ */
+@Component
+@RequiredArgsConstructor
+public class StorageRoots {
+    @Value("${storage.placement}")
+    private Placement placement;
+
+    private final StartupArgumentsRunner startupArgumentsRunner;
+    private final PicturesRepository picturesRepository;
+
+    private final AtomicInteger nextRoot = new AtomicInteger();
+    private final Map<String, Long> reservedPixels = new HashMap<>();                   // guarded by this
+
+    public enum Placement {
+        ROUND_ROBIN,                                                                    // roots in turn
+        LEAST_USED,                                                                     // root with the fewest canvas pixels
+        HASH                                                                            // root by the hash of the file name
+    }
+
+    public List<String> getRoots() {
+        return startupArgumentsRunner.getPicturesFolders();
+    }
+
+    /**
+     * Chooses the root of a new picture file. Hash placement uses the file name, the id is not known before the row is saved.
+     * The caller must {@link #release} the root once the row of the picture is saved or its creation fails.
+     */
+    public String choose(String fileName, int width, int height) {
+        List<String> roots = getRoots();
+        if (roots.size() == 1) return roots.get(0);
+        switch (placement) {
+            case ROUND_ROBIN:
+                return roots.get(Math.floorMod(nextRoot.getAndIncrement(), roots.size()));
+            case LEAST_USED:
+                return reserveLeastUsedRoot(roots, (long) width * height);
+            case HASH:
+                return roots.get(Math.floorMod(fileName.hashCode(), roots.size()));
+            default:
+                throw new IllegalStateException("Unknown placement " + placement);
+        }
+    }
+
+    /**
+     * Drops the reservation made by {@link #choose}, the saved row counts the pixels of the picture from now on.
+     */
+    public synchronized void release(String root, int width, int height) {
+        reservedPixels.computeIfPresent(root, (key, pixels) -> pixels > (long) width * height ? pixels - (long) width * height : null);
+    }
+
+    /**
+     * Canvas bytes are proportional to pixels, so the root with the fewest pixels also has the fewest bytes.
+     * The choice and the reservation are made under one monitor, so no two creates choose from the same totals.
+     */
+    private synchronized String reserveLeastUsedRoot(List<String> roots, long pixels) {
+        Map<String, Long> usedPixels = new HashMap<>(reservedPixels);
+        for (Object[] row : picturesRepository.sumPixelsByStorageRoot(Set.of(PictureStatus.READY, PictureStatus.PENDING))) {
+            usedPixels.merge((String) row[0], ((Number) row[1]).longValue(), Long::sum);
+        }
+        String root = roots.stream().min(Comparator.comparingLong(candidate -> usedPixels.getOrDefault(candidate, 0L))).get();
+        reservedPixels.merge(root, pixels, Long::sum);
+        return root;
+    }
+}
@@ -0,0 +1,252 @@
+package com.github.assemblathe1.chartographer.services;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory dirty tiles of recently uploaded fragments.
+ * <p>
+ * Small uploads are absorbed into whole tiles and acknowledged without touching the canvas, overlapping uploads
+ * simply overwrite the same tile, and a background flusher writes whole tiles out. A tile always lies inside one
+ * tile of {@link PictureRegionLocks}, so the region lock held by a request also guards the tiles it touches.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class WriteBehindBuffer {
+    @Value("${writeBehind.enabled}")
+    private boolean enabled;
+    @Value("${writeBehind.tileSize}")
+    private int tileSize;
+    @Value("${writeBehind.maxBufferedBytes}")
+    private long maxBufferedBytes;
+    @Value("${writeBehind.flushInterval}")
+    private long flushInterval;
+    @Value("${writeBehind.maxFragmentPixels}")
+    private long maxFragmentPixels;
+    @Value("${storage.lockTileSize}")
+    private int lockTileSize;
+
+    private final MappedCanvasCache mappedCanvasCache;
+    private final PictureRegionLocks pictureRegionLocks;
+
+    private final ConcurrentMap<Long, DirtyTiles> dirtyTiles = new ConcurrentHashMap<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void startFlusher() {
+        if (lockTileSize % tileSize != 0) throw new IllegalStateException("writeBehind.tileSize must divide storage.lockTileSize");
+        if (!enabled) return;
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "write-behind-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAll, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+        }
+        flushAll();
+    }
+
+    public boolean isAbsorbed(int width, int height) {
+        return enabled && (long) width * height <= maxFragmentPixels;
+    }
+
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * Pictures with an entry in the buffer; entries left empty by a flush are removed.
+     */
+    public int getBufferedPicturesCount() {
+        return dirtyTiles.size();
+    }
+
+    public boolean hasDirtyTiles(Picture picture) {
+        DirtyTiles tiles = dirtyTiles.get(picture.getId());
+        return tiles != null && !tiles.tiles.isEmpty();
+    }
+
+    /**
+     * Whether any buffered tile covers the picture row, so the canvas alone does not hold the current pixels of it.
+     */
+    public boolean hasDirtyTiles(Picture picture, int y) {
+        DirtyTiles tiles = dirtyTiles.get(picture.getId());
+        if (tiles == null || tiles.tiles.isEmpty()) return false;
+        int tilesCount = getTilesCount(picture.getWidth());
+        for (int tileColumn = 0; tileColumn < tilesCount; tileColumn++) {
+            if (tiles.tiles.containsKey(y / tileSize * tilesCount + tileColumn)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes a part of a picture row. Tiles that are already buffered always take the pixels, so a newer
+     * write-through never gets overwritten by an older tile flushed later. A missing tile is added only if no other
+     * writer added it meanwhile, so writers of different rows of one tile share the same copy.
+     */
+    public void writeRow(Picture picture, Canvas canvas, boolean absorbed, int y, int x, byte[] source, int sourceOffset, int pixels) {
+        DirtyTiles tiles = dirtyTiles.get(picture.getId());
+        int tileRow = y / tileSize;
+        for (int segmentX = x; segmentX < x + pixels; ) {
+            int tileColumn = segmentX / tileSize;
+            int segmentPixels = Math.min(x + pixels, (tileColumn + 1) * tileSize) - segmentX;
+            int segmentOffset = sourceOffset + 3 * (segmentX - x);
+            int tileIndex = tileRow * getTilesCount(picture.getWidth()) + tileColumn;
+
+            byte[] tile = tiles == null ? null : tiles.tiles.get(tileIndex);
+            if (tile == null && absorbed && reserveTile()) {
+                tile = addTile(picture, tileIndex, loadTile(canvas, picture, tileRow, tileColumn));
+            }
+            if (tile != null) {
+                System.arraycopy(source, segmentOffset, tile, 3 * ((y - tileRow * tileSize) * tileSize + segmentX - tileColumn * tileSize), 3 * segmentPixels);
+            } else {
+                canvas.writeRow(y, segmentX, source, segmentOffset, segmentPixels);
+            }
+            segmentX += segmentPixels;
+        }
+    }
+
+    public void overlayRow(Picture picture, int y, int x, byte[] destination, int destinationOffset, int pixels) {
+        DirtyTiles tiles = dirtyTiles.get(picture.getId());
+        if (tiles == null || tiles.tiles.isEmpty()) return;
+        int tileRow = y / tileSize;
+        for (int segmentX = x; segmentX < x + pixels; ) {
+            int tileColumn = segmentX / tileSize;
+            int segmentPixels = Math.min(x + pixels, (tileColumn + 1) * tileSize) - segmentX;
+            byte[] tile = tiles.tiles.get(tileRow * getTilesCount(picture.getWidth()) + tileColumn);
+            if (tile != null) {
+                System.arraycopy(tile, 3 * ((y - tileRow * tileSize) * tileSize + segmentX - tileColumn * tileSize),
+                        destination, destinationOffset + 3 * (segmentX - x), 3 * segmentPixels);
+            }
+            segmentX += segmentPixels;
+        }
+    }
+
+    public void flushAll() {
+        flushRequested.set(false);
+        for (DirtyTiles tiles : dirtyTiles.values()) {
+            try {
+                flush(tiles);
+            } catch (IOException | RuntimeException e) {
+                log.error("Unable to flush picture " + tiles.picture.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Writes out the tiles of one picture. The caller must not hold any region lock of the picture.
+     */
+    public void flush(Picture picture) throws IOException {
+        DirtyTiles tiles = dirtyTiles.get(picture.getId());
+        if (tiles != null) flush(tiles);
+    }
+
+    /**
+     * Drops the unflushed tiles of a deleted picture. The picture must be retired first, so no writer adds tiles afterwards.
+     */
+    public void discard(Picture picture) {
+        DirtyTiles tiles = dirtyTiles.remove(picture.getId());
+        if (tiles == null) return;
+        tiles.tiles.keySet().forEach(tileIndex -> {
+            if (tiles.tiles.remove(tileIndex) != null) bufferedBytes.addAndGet(-getTileBytes());
+        });
+    }
+
+    private void flush(DirtyTiles tiles) throws IOException {
+        Picture picture = tiles.picture;
+        int tilesInRow = getTilesCount(picture.getWidth());
+        for (Integer tileIndex : tiles.tiles.keySet()) {
+            int tileRow = tileIndex / tilesInRow;
+            int tileColumn = tileIndex % tilesInRow;
+            try (PictureRegionLocks.RegionLock ignored = pictureRegionLocks.lockForWrite(picture, tileColumn * tileSize, tileRow * tileSize, tileSize, tileSize)) {
+                byte[] tile = tiles.tiles.get(tileIndex);
+                if (tile == null) continue;
+                Canvas canvas = mappedCanvasCache.get(picture);
+                int tilePixels = Math.min(tileSize, picture.getWidth() - tileColumn * tileSize);
+                int tileRows = Math.min(tileSize, picture.getHeight() - tileRow * tileSize);
+                for (int i = 0; i < tileRows; i++) {
+                    canvas.writeRow(tileRow * tileSize + i, tileColumn * tileSize, tile, 3 * i * tileSize, tilePixels);
+                }
+                tiles.tiles.remove(tileIndex);
+                bufferedBytes.addAndGet(-getTileBytes());
+            }
+        }
+        // Tiles are only added inside compute, so an entry found empty there cannot take a tile any more
+        dirtyTiles.computeIfPresent(picture.getId(), (id, current) -> current == tiles && tiles.tiles.isEmpty() ? null : current);
+    }
+
+    /**
+     * Adds a loaded tile to the entry of the picture, creating the entry if a flush has just removed it.
+     *
+     * @return the tile to write into, the one added by another writer if there was one
+     */
+    private byte[] addTile(Picture picture, int tileIndex, byte[] loadedTile) {
+        byte[][] tile = new byte[1][];
+        dirtyTiles.compute(picture.getId(), (id, tiles) -> {
+            DirtyTiles current = tiles == null ? new DirtyTiles(picture) : tiles;
+            byte[] added = current.tiles.putIfAbsent(tileIndex, loadedTile);
+            tile[0] = added == null ? loadedTile : added;
+            return current;
+        });
+        if (tile[0] != loadedTile) bufferedBytes.addAndGet(-getTileBytes());
+        return tile[0];
+    }
+
+    private byte[] loadTile(Canvas canvas, Picture picture, int tileRow, int tileColumn) {
+        byte[] tile = new byte[(int) getTileBytes()];
+        int tilePixels = Math.min(tileSize, picture.getWidth() - tileColumn * tileSize);
+        int tileRows = Math.min(tileSize, picture.getHeight() - tileRow * tileSize);
+        for (int i = 0; i < tileRows; i++) {
+            canvas.readRow(tileRow * tileSize + i, tileColumn * tileSize, tile, 3 * i * tileSize, tilePixels);
+        }
+        return tile;
+    }
+
+    private boolean reserveTile() {
+        if (bufferedBytes.addAndGet(getTileBytes()) <= maxBufferedBytes) return true;
+        bufferedBytes.addAndGet(-getTileBytes());
+        if (flusher != null && flushRequested.compareAndSet(false, true)) flusher.execute(this::flushAll);
+        return false;
+    }
+
+    private long getTileBytes() {
+        return 3L * tileSize * tileSize;
+    }
+
+    private int getTilesCount(int pictureSideSize) {
+        return (pictureSideSize + tileSize - 1) / tileSize;
+    }
+
+    private static class DirtyTiles {
+        private final Picture picture;
+        private final ConcurrentMap<Integer, byte[]> tiles = new ConcurrentHashMap<>();
+
+        private DirtyTiles(Picture picture) {
+            this.picture = picture;
+        }
+    }
+}
@@ -5,13 +5,26 @@ import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Data
 @Component
 public class StartupArgumentsRunner implements CommandLineRunner {
-    private String folder;
+    private List<String> folders = List.of();
     @Override
     public void run(String... args) {
-        this.folder = Arrays.deepToString(args);
+        this.folders = Arrays.stream(args)
+                .filter(arg -> !arg.startsWith("--"))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Every folder argument is a storage root for pictures; Spring options ({@code --name=value}) are skipped.
+     */
+    public List<String> getPicturesFolders() {
+        return folders.isEmpty()
+                ? List.of(System.getProperty("java.io.tmpdir") + "/pictures")
+                : folders;
     }
 }
@@ -42,6 +42,21 @@ public class PictureValidator {
         if (!errors.isEmpty()) throw new ValidationException(errors);
     }
 
+    public void validateLevel(Integer level, Integer levelsCount) {
+        List<String> errors = new ArrayList<>();
+        if (level < 0 || level > levelsCount) errors.add("Level must be between 0 and " + levelsCount);
+
+        if (!errors.isEmpty()) throw new ValidationException(errors);
+    }
+
+    public void validateRegions(Integer regionsCount, Long regionsPixels, Integer maxRegionsCount, Long maxRegionsPixels) {
+        List<String> errors = new ArrayList<>();
+        if (regionsCount > maxRegionsCount) errors.add("Regions count can not be more than " + maxRegionsCount);
+        if (regionsPixels > maxRegionsPixels) errors.add("Regions can not cover more than " + maxRegionsPixels + " pixels in total");
+
+        if (!errors.isEmpty()) throw new ValidationException(errors);
+    }
+
     private void checkIfValueLessThanZero(Integer value, List<String> errors, String parameter) {
         if (value <= 0) errors.add(parameter + " can not be less than 0");
     }
@@ -0,0 +1 @@
+alter table pictures add column if not exists status varchar(16) not null default 'READY';
@@ -0,0 +1 @@
+alter table pictures add column if not exists storage_root varchar(255);
@@ -0,0 +1,94 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import com.github.assemblathe1.chartographer.services.BitmapFileService;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(properties = {"journal.enabled=false", "bands.minPixels=1", "bands.rows=4", "writeBehind.maxFragmentPixels=0"})
+public class BandedFragmentTest {
+
+    @Autowired
+    private BitmapFileService bitmapFileService;
+
+    @MockBean
+    private PicturesRepository picturesRepository;
+
+    private final String tmpdir = System.getProperty("java.io.tmpdir");
+    private final int pictureWidth = 51;
+    private final int pictureHeight = 102;
+    private final int fragmentWidth = 31;
+    private final int fragmentHeight = 26;
+    private final int[][] regions = {{5, 5}, {-10, -10}, {40, 90}};
+
+    @Test
+    public void givenBandedFragment_whenGetPictureFragment_thenPicturePixelsAndBlackOutside() throws Exception {
+        // Каждый фрагмент разбит на полосы по 4 строки, в том числе выходящие за края папируса
+        Picture bandPicture = new Picture(1L, getTestFile("whenGetMultipartPictureFragment.bmp"), pictureWidth, pictureHeight, PictureStatus.READY);
+        BufferedImage bufferedPicture = ImageIO.read(new File(bandPicture.getUrl()));
+
+        for (int[] region : regions) {
+            ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+            bitmapFileService.getPictureFragment(region[0], region[1], fragmentWidth, fragmentHeight, bandPicture, 0, fragment);
+            BufferedImage returnedFragment = ImageIO.read(new ByteArrayInputStream(fragment.toByteArray()));
+            for (int i = 0; i < fragmentWidth; i++) {
+                for (int j = 0; j < fragmentHeight; j++) {
+                    int x = region[0] + i;
+                    int y = region[1] + j;
+                    int expected = isInside(x, y) ? bufferedPicture.getRGB(x, y) : Color.BLACK.getRGB();
+                    assertEquals(expected, returnedFragment.getRGB(i, j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void givenBandedFragment_whenSavePictureFragment_thenPixelsInsidePictureWritten() throws Exception {
+        // Буфер отложенной записи не принимает фрагменты, поэтому полосы записывает пул полос
+        Picture bandPicture = new Picture(2L, tmpdir + "whenSaveBandFragment.bmp", pictureWidth, pictureHeight, PictureStatus.READY);
+        File copiedPicture = new File(bandPicture.getUrl());
+        Files.deleteIfExists(copiedPicture.toPath());
+        FileUtils.copyFile(new File(getTestFile("whenSaveMultipartPicture.bmp")), copiedPicture);
+        byte[] fragment = Files.readAllBytes(new File(getTestFile("whenSaveMultipartPictureFragment.bmp")).toPath());
+        BufferedImage bufferedFragment = ImageIO.read(new ByteArrayInputStream(fragment));
+
+        for (int[] region : regions) {
+            bitmapFileService.savePictureFragment(region[0], region[1], fragmentWidth, fragmentHeight, new ByteArrayInputStream(fragment), bandPicture);
+            // Строки пишутся прямо в отображённый файл, поэтому он сразу содержит фрагмент
+            BufferedImage changedPicture = ImageIO.read(copiedPicture);
+            for (int i = 0; i < fragmentWidth; i++) {
+                for (int j = 0; j < fragmentHeight; j++) {
+                    int x = region[0] + i;
+                    int y = region[1] + j;
+                    if (isInside(x, y)) assertEquals(bufferedFragment.getRGB(i, j), changedPicture.getRGB(x, y));
+                }
+            }
+        }
+
+        bitmapFileService.evictPicture(bandPicture);
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    private boolean isInside(int x, int y) {
+        return x >= 0 && y >= 0 && x < pictureWidth && y < pictureHeight;
+    }
+
+    private String getTestFile(String fileName) {
+        return getClass().getClassLoader().getResource("pictures/" + fileName).getPath();
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.exceptions.ValidationException;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import com.github.assemblathe1.chartographer.services.BitmapFileService;
+import com.github.assemblathe1.chartographer.services.FragmentJournal;
+import com.github.assemblathe1.chartographer.services.PicturesService;
+import com.github.assemblathe1.chartographer.services.WriteBehindBuffer;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.BDDMockito.given;
+
+@SpringBootTest(properties = {"journal.folder=${java.io.tmpdir}/chartographer-chunked-journal", "journal.maxRecordPixels=100"})
+public class ChunkedFragmentJournalTest {
+
+    @Autowired
+    private PicturesService picturesService;
+
+    @Autowired
+    private FragmentJournal fragmentJournal;
+
+    @Autowired
+    private WriteBehindBuffer writeBehindBuffer;
+
+    @Autowired
+    private BitmapFileService bitmapFileService;
+
+    @MockBean
+    private PicturesRepository picturesRepository;
+
+    private final String tmpdir = System.getProperty("java.io.tmpdir");
+    private final int pictureWidth = 51;
+    private final int pictureHeight = 102;
+    private final int fragmentWidth = 31;
+    private final int fragmentHeight = 26;
+
+    @Test
+    public void givenChunkedFragment_whenJournalReplayed_thenWholeFragmentRestored() throws Exception {
+        // Фрагмент больше journal.maxRecordPixels записывается в журнал частями по 3 строки и после сбоя восстанавливается целиком
+        Picture chunkedPicture = new Picture(1L, tmpdir + "whenSaveChunkedFragment.bmp", pictureWidth, pictureHeight, PictureStatus.READY);
+        File copiedPicture = copyPicture(chunkedPicture);
+        given(picturesRepository.findById(1L)).willReturn(Optional.of(chunkedPicture));
+        fragmentJournal.checkpoint();
+        byte[] fragment = Files.readAllBytes(new File(getTestFile("whenSaveMultipartPictureFragment.bmp")).toPath());
+        BufferedImage bufferedFragment = ImageIO.read(new ByteArrayInputStream(fragment));
+
+        picturesService.savePictureFragment("1", 5, 5, fragmentWidth, fragmentHeight, new ByteArrayInputStream(fragment), fragment.length).call();
+        writeBehindBuffer.flushAll();
+        checkFragmentInPicture(ImageIO.read(copiedPicture), bufferedFragment);
+
+        // Холст теряет фрагмент: буфер отброшен, файл заменён исходным
+        writeBehindBuffer.discard(chunkedPicture);
+        bitmapFileService.evictPicture(chunkedPicture);
+        copyPicture(chunkedPicture);
+
+        fragmentJournal.replay(fragmentJournal.getJournalPath());
+        writeBehindBuffer.flushAll();
+        checkFragmentInPicture(ImageIO.read(copiedPicture), bufferedFragment);
+        fragmentJournal.checkpoint();
+        bitmapFileService.evictPicture(chunkedPicture);
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    @Test
+    public void givenUnfinishedChunkedFragment_whenJournalReplayed_thenNothingApplied() throws Exception {
+        // Тело оборвалось после нескольких частей: записи завершения нет, поэтому ни одна часть не применяется
+        Picture chunkedPicture = new Picture(2L, tmpdir + "whenSaveUnfinishedChunkedFragment.bmp", pictureWidth, pictureHeight, PictureStatus.READY);
+        File copiedPicture = copyPicture(chunkedPicture);
+        BufferedImage sourcePicture = ImageIO.read(copiedPicture);
+        given(picturesRepository.findById(2L)).willReturn(Optional.of(chunkedPicture));
+        fragmentJournal.checkpoint();
+        byte[] fragment = Files.readAllBytes(new File(getTestFile("whenSaveMultipartPictureFragment.bmp")).toPath());
+        byte[] tornFragment = Arrays.copyOf(fragment, fragment.length / 2);
+
+        assertThrows(ValidationException.class, () -> picturesService.savePictureFragment("2", 5, 5, fragmentWidth, fragmentHeight,
+                new ByteArrayInputStream(tornFragment)).call());
+        writeBehindBuffer.flushAll();
+        checkPictureUnchanged(ImageIO.read(copiedPicture), sourcePicture);
+
+        fragmentJournal.replay(fragmentJournal.getJournalPath());
+        writeBehindBuffer.flushAll();
+        checkPictureUnchanged(ImageIO.read(copiedPicture), sourcePicture);
+        fragmentJournal.checkpoint();
+        bitmapFileService.evictPicture(chunkedPicture);
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    private File copyPicture(Picture picture) throws Exception {
+        File copiedPicture = new File(picture.getUrl());
+        Files.deleteIfExists(copiedPicture.toPath());
+        FileUtils.copyFile(new File(getTestFile("whenSaveMultipartPicture.bmp")), copiedPicture);
+        return copiedPicture;
+    }
+
+    private void checkFragmentInPicture(BufferedImage bufferedPicture, BufferedImage bufferedFragment) {
+        for (int i = 0; i < fragmentWidth; i++) {
+            for (int j = 0; j < fragmentHeight; j++) {
+                assertEquals(bufferedFragment.getRGB(i, j), bufferedPicture.getRGB(5 + i, 5 + j));
+            }
+        }
+    }
+
+    private void checkPictureUnchanged(BufferedImage bufferedPicture, BufferedImage sourcePicture) {
+        for (int i = 0; i < pictureWidth; i++) {
+            for (int j = 0; j < pictureHeight; j++) {
+                assertEquals(sourcePicture.getRGB(i, j), bufferedPicture.getRGB(i, j));
+            }
+        }
+    }
+
+    private String getTestFile(String fileName) {
+        return getClass().getClassLoader().getResource("pictures/" + fileName).getPath();
+    }
+}
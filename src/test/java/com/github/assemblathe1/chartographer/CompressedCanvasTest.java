@@ -0,0 +1,76 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.services.CompressedCanvas;
+import com.github.assemblathe1.chartographer.services.MappedCanvas;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CompressedCanvasTest {
+    private final int pictureWidth = 51;
+    private final int pictureHeight = 102;
+
+    @Test
+    public void givenSmallTiles_whenCompressAndCopyBack_thenPixelsMatch() throws Exception {
+        // Плитки по 16 пикселей, чтобы крайние плитки обрезались по размеру папируса
+        File copiedPicture = File.createTempFile("whenGetMultipartPictureFragment", ".bmp");
+        FileUtils.copyFile(new File(getTestFile("whenGetMultipartPictureFragment.bmp")), copiedPicture);
+        Path compressedPicture = Files.createTempFile("whenCompressPicture", ".tiles");
+        File restoredPicture = File.createTempFile("whenRestorePicture", ".bmp");
+        FileUtils.copyFile(copiedPicture, restoredPicture);
+        try (RandomAccessFile blankPicture = new RandomAccessFile(restoredPicture, "rw")) {
+            blankPicture.setLength(54);
+            blankPicture.setLength(copiedPicture.length());
+        }
+
+        try (MappedCanvas canvas = MappedCanvas.open(copiedPicture.toPath(), pictureWidth, pictureHeight, Integer.MAX_VALUE)) {
+            CompressedCanvas.write(canvas, compressedPicture, 16);
+            try (CompressedCanvas compressedCanvas = CompressedCanvas.open(compressedPicture, 2);
+                 MappedCanvas restoredCanvas = MappedCanvas.open(restoredPicture.toPath(), pictureWidth, pictureHeight, Integer.MAX_VALUE)) {
+                byte[] row = new byte[pictureWidth * 3];
+                byte[] compressedRow = new byte[pictureWidth * 3];
+                for (int y = 0; y < pictureHeight; y++) {
+                    canvas.readRow(y, 0, row, 0, pictureWidth);
+                    compressedCanvas.readRow(y, 0, compressedRow, 0, pictureWidth);
+                    assertArrayEquals(row, compressedRow);
+                }
+                compressedCanvas.readRow(50, 13, compressedRow, 0, 30);
+                canvas.readRow(50, 13, row, 0, 30);
+                assertArrayEquals(row, compressedRow);
+
+                compressedCanvas.copyTo(restoredCanvas);
+            }
+        }
+        assertArrayEquals(Files.readAllBytes(copiedPicture.toPath()), Files.readAllBytes(restoredPicture.toPath()));
+        Files.deleteIfExists(copiedPicture.toPath());
+        Files.deleteIfExists(restoredPicture.toPath());
+        Files.deleteIfExists(compressedPicture);
+    }
+
+    @Test
+    public void givenBlackCanvas_whenCompress_thenOnlyIndexIsStored() throws Exception {
+        // Чёрные плитки не хранятся, файл состоит из заголовка и оглавления
+        File blankPicture = File.createTempFile("whenCompressBlankPicture", ".bmp");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(blankPicture, "rw")) {
+            randomAccessFile.setLength(54 + 156L * pictureHeight);
+        }
+        Path compressedPicture = Files.createTempFile("whenCompressBlankPicture", ".tiles");
+        try (MappedCanvas canvas = MappedCanvas.open(blankPicture.toPath(), pictureWidth, pictureHeight, Integer.MAX_VALUE)) {
+            CompressedCanvas.write(canvas, compressedPicture, 16);
+        }
+        assertEquals(16 + 4 * 7 * 12, Files.size(compressedPicture));
+        Files.deleteIfExists(blankPicture.toPath());
+        Files.deleteIfExists(compressedPicture);
+    }
+
+    private String getTestFile(String fileName) {
+        return getClass().getClassLoader().getResource("pictures/" + fileName).getPath();
+    }
+}
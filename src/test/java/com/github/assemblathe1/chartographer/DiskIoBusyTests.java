@@ -0,0 +1,81 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import com.github.assemblathe1.chartographer.services.PictureMetadataCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+
+import static org.mockito.BDDMockito.given;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = {"diskIo.poolSize=1", "diskIo.queueCapacity=0"})
+@AutoConfigureMockMvc
+public class DiskIoBusyTests {
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ThreadPoolTaskExecutor diskIoExecutor;
+
+    @Autowired
+    private PictureMetadataCache pictureMetadataCache;
+
+    @MockBean
+    private PicturesRepository picturesRepository;
+
+    private final Picture picture = new Picture(1L, "whenDiskIoBusy.bmp", 20000, 50000, PictureStatus.READY);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    public void clearMetadataCache() {
+        pictureMetadataCache.clear();
+    }
+
+    @AfterEach
+    public void awaitIdleDiskIoExecutor() throws InterruptedException {
+        // Следующий запрос не должен застать поток ещё занятым
+        release.countDown();
+        while (diskIoExecutor.getActiveCount() > 0) Thread.sleep(10);
+    }
+
+    @Test
+    public void givenBusyDiskIoExecutor_whenGetPictureFragment_thenStatus503() throws Exception {
+        // Единственный поток занят, очереди нет — запрос отклоняется сразу, а не ждёт
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
+        diskIoExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        mvc
+                .perform(get("/chartas/{id}/", picture.getId())
+                        .param("x", String.valueOf(0))
+                        .param("y", String.valueOf(0))
+                        .param("width", String.valueOf(31))
+                        .param("height", String.valueOf(26))
+                )
+                .andDo(print())
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"));
+    }
+}
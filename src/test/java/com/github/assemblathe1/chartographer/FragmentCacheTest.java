@@ -0,0 +1,60 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.services.FragmentCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class FragmentCacheTest {
+    private final FragmentCache fragmentCache = new FragmentCache();
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(fragmentCache, "maxBytes", 300L);
+        ReflectionTestUtils.setField(fragmentCache, "maxEntryBytes", 200L);
+    }
+
+    @Test
+    public void givenCachedFragments_whenSaveIntersectingRectangle_thenOnlyIntersectingInvalidated() {
+        FragmentCache.FragmentKey topLeft = new FragmentCache.FragmentKey(1L, -10, -10, 20, 20, 0);
+        FragmentCache.FragmentKey bottomRight = new FragmentCache.FragmentKey(1L, 50, 50, 20, 20, 0);
+        FragmentCache.FragmentKey overview = new FragmentCache.FragmentKey(1L, 0, 0, 10, 10, 2);
+        fragmentCache.put(topLeft, new byte[10]);
+        fragmentCache.put(bottomRight, new byte[10]);
+        fragmentCache.put(overview, new byte[10]);
+
+        fragmentCache.invalidate(1L, 5, 5, 10, 10);
+        assertNull(fragmentCache.get(topLeft));
+        assertNull(fragmentCache.get(overview));
+        assertNotNull(fragmentCache.get(bottomRight));
+        assertEquals(1, fragmentCache.getHits());
+        assertEquals(2, fragmentCache.getMisses());
+        assertEquals(2, fragmentCache.getInvalidations());
+
+        fragmentCache.invalidate(1L);
+        assertNull(fragmentCache.get(bottomRight));
+        assertEquals(0, fragmentCache.getCachedBytes());
+    }
+
+    @Test
+    public void givenFullCache_whenPutFragment_thenLeastRecentlyUsedEvicted() {
+        FragmentCache.FragmentKey first = new FragmentCache.FragmentKey(1L, 0, 0, 1, 1, 0);
+        FragmentCache.FragmentKey second = new FragmentCache.FragmentKey(2L, 0, 0, 1, 1, 0);
+        FragmentCache.FragmentKey third = new FragmentCache.FragmentKey(3L, 0, 0, 1, 1, 0);
+        fragmentCache.put(first, new byte[100]);
+        fragmentCache.put(second, new byte[100]);
+        fragmentCache.get(first);
+        fragmentCache.put(third, new byte[150]);
+        fragmentCache.put(new FragmentCache.FragmentKey(4L, 0, 0, 1, 1, 0), new byte[201]);
+
+        assertNotNull(fragmentCache.get(first));
+        assertNull(fragmentCache.get(second));
+        assertNotNull(fragmentCache.get(third));
+        assertEquals(1, fragmentCache.getEvictions());
+        assertEquals(250, fragmentCache.getCachedBytes());
+    }
+}
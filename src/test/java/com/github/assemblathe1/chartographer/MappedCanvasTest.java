@@ -0,0 +1,77 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.services.MappedCanvas;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MappedCanvasTest {
+    private final int pictureWidth = 51;
+    private final int pictureHeight = 102;
+
+    @Test
+    public void givenSmallSegments_whenReadAndWriteRows_thenRowsMatchBMPLayout() throws Exception {
+        // Сегменты по 5 строк, чтобы строки папируса приходились на разные отображения
+        File copiedPicture = File.createTempFile("whenGetMultipartPictureFragment", ".bmp");
+        FileUtils.copyFile(new File(getTestFile("whenGetMultipartPictureFragment.bmp")), copiedPicture);
+        BufferedImage bufferedPicture = ImageIO.read(copiedPicture);
+
+        byte[] row = new byte[pictureWidth * 3];
+        try (MappedCanvas canvas = MappedCanvas.open(copiedPicture.toPath(), pictureWidth, pictureHeight, 5 * 156)) {
+            for (int y = 0; y < pictureHeight; y++) {
+                canvas.readRow(y, 0, row, 0, pictureWidth);
+                for (int x = 0; x < pictureWidth; x++) {
+                    assertEquals(bufferedPicture.getRGB(x, y) & 0xffffff, rgb(row, x));
+                }
+            }
+
+            byte[] white = new byte[10 * 3];
+            Arrays.fill(white, (byte) 0xff);
+            canvas.writeRow(pictureHeight - 1, 41, white, 0, 10);
+            canvas.writeRow(0, 0, white, 0, 10);
+            byte[] readBack = new byte[white.length];
+            canvas.readRow(pictureHeight - 1, 41, readBack, 0, 10);
+            assertArrayEquals(white, readBack);
+        }
+
+        BufferedImage changedPicture = ImageIO.read(copiedPicture);
+        assertEquals(0xffffff, changedPicture.getRGB(pictureWidth - 1, pictureHeight - 1) & 0xffffff);
+        assertEquals(0xffffff, changedPicture.getRGB(0, 0) & 0xffffff);
+        assertEquals(bufferedPicture.getRGB(0, 1), changedPicture.getRGB(0, 1));
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    @Test
+    public void givenSmallSegments_whenReadRows_thenRowsCopiedInFileOrder() throws Exception {
+        // Строки 3..20 лежат в пяти сегментах и копируются вместе с выравниванием в порядке файла
+        File copiedPicture = File.createTempFile("whenGetMultipartPictureFragment", ".bmp");
+        FileUtils.copyFile(new File(getTestFile("whenGetMultipartPictureFragment.bmp")), copiedPicture);
+        byte[] file = Files.readAllBytes(copiedPicture.toPath());
+        int rowStride = 156;
+        int rows = 18;
+
+        byte[] copiedRows = new byte[rows * rowStride + 7];
+        try (MappedCanvas canvas = MappedCanvas.open(copiedPicture.toPath(), pictureWidth, pictureHeight, 5 * 156)) {
+            canvas.readRows(3, rows, copiedRows, 7);
+        }
+        int fileOffset = 54 + (pictureHeight - 3 - rows) * rowStride;
+        assertArrayEquals(Arrays.copyOfRange(file, fileOffset, fileOffset + rows * rowStride), Arrays.copyOfRange(copiedRows, 7, copiedRows.length));
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    private int rgb(byte[] row, int x) {
+        return (row[3 * x + 2] & 0xff) << 16 | (row[3 * x + 1] & 0xff) << 8 | (row[3 * x] & 0xff);
+    }
+
+    private String getTestFile(String fileName) {
+        return getClass().getClassLoader().getResource("pictures/" + fileName).getPath();
+    }
+}
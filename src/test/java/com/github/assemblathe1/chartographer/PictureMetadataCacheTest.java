@@ -0,0 +1,51 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.services.PictureMetadataCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PictureMetadataCacheTest {
+    private final PictureMetadataCache pictureMetadataCache = new PictureMetadataCache();
+    private final Picture picture = new Picture(1L, "papyrus.bmp", 100, 100, PictureStatus.READY);
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(pictureMetadataCache, "maxEntries", 10);
+        ReflectionTestUtils.setField(pictureMetadataCache, "maxMissingEntries", 10);
+        ReflectionTestUtils.setField(pictureMetadataCache, "missingEntryTtl", 1000L);
+    }
+
+    @Test
+    public void givenCachedPicture_whenCallerChangesIt_thenCachedPictureUnchanged() {
+        pictureMetadataCache.put(picture);
+        picture.setStatus(PictureStatus.DELETED);
+        Picture cachedPicture = pictureMetadataCache.get(1L, Optional::empty).orElseThrow();
+        assertEquals(PictureStatus.READY, cachedPicture.getStatus());
+
+        cachedPicture.setUrl("changed.bmp");
+        assertEquals("papyrus.bmp", pictureMetadataCache.get(1L, Optional::empty).orElseThrow().getUrl());
+    }
+
+    @Test
+    public void givenInvalidationDuringLoad_whenGet_thenLoadedPictureNotCached() {
+        AtomicInteger loads = new AtomicInteger();
+        pictureMetadataCache.get(1L, () -> {
+            loads.incrementAndGet();
+            pictureMetadataCache.invalidate(1L);
+            return Optional.of(picture);
+        });
+        pictureMetadataCache.get(1L, () -> {
+            loads.incrementAndGet();
+            return Optional.of(picture);
+        });
+        assertEquals(2, loads.get());
+    }
+}
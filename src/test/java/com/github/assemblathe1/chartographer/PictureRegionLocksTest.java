@@ -0,0 +1,72 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.exceptions.ResourceNotFoundException;
+import com.github.assemblathe1.chartographer.services.PictureRegionLocks;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PictureRegionLocksTest {
+    private final PictureRegionLocks pictureRegionLocks = new PictureRegionLocks();
+    private final Picture picture = new Picture("papyrus.bmp", 1000, 1000);
+
+    @BeforeEach
+    public void setUp() {
+        picture.setId(1L);
+        ReflectionTestUtils.setField(pictureRegionLocks, "lockTileSize", 100);
+    }
+
+    @Test
+    public void givenWriter_whenWriteDisjointRegion_thenNotBlocked() throws Exception {
+        try (PictureRegionLocks.RegionLock ignored = pictureRegionLocks.lockForWrite(picture, 0, 0, 100, 100)) {
+            CompletableFuture
+                    .runAsync(() -> pictureRegionLocks.lockForWrite(picture, 100, 0, 100, 100).close())
+                    .get(1, TimeUnit.SECONDS);
+            CompletableFuture
+                    .runAsync(() -> pictureRegionLocks.lockForRead(picture, -50, 100, 500, 500).close())
+                    .get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void givenWriter_whenReadOverlappingRegion_thenBlockedUntilWriterFinished() throws Exception {
+        PictureRegionLocks.RegionLock writeLock = pictureRegionLocks.lockForWrite(picture, 950, 950, 100, 100);
+        CompletableFuture<Void> reader = CompletableFuture
+                .runAsync(() -> pictureRegionLocks.lockForRead(picture, 900, 900, 60, 60).close());
+        assertThrows(TimeoutException.class, () -> reader.get(200, TimeUnit.MILLISECONDS));
+        assertFalse(reader.isDone());
+        writeLock.close();
+        reader.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void givenWriter_whenLocksRemoved_thenReaderStillBlockedUntilWriterFinished() throws Exception {
+        PictureRegionLocks.RegionLock writeLock = pictureRegionLocks.lockForWrite(picture, 0, 0, 100, 100);
+        pictureRegionLocks.remove(picture);
+        CompletableFuture<Void> reader = CompletableFuture
+                .runAsync(() -> pictureRegionLocks.lockForRead(picture, 50, 50, 10, 10).close());
+        assertThrows(TimeoutException.class, () -> reader.get(200, TimeUnit.MILLISECONDS));
+        writeLock.close();
+        reader.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void givenWriter_whenRetired_thenRetireWaitsAndLaterLocksRefused() throws Exception {
+        PictureRegionLocks.RegionLock writeLock = pictureRegionLocks.lockForWrite(picture, 0, 0, 100, 100);
+        CompletableFuture<Void> retire = CompletableFuture.runAsync(() -> pictureRegionLocks.retire(picture));
+        assertThrows(TimeoutException.class, () -> retire.get(200, TimeUnit.MILLISECONDS));
+        writeLock.close();
+        retire.get(1, TimeUnit.SECONDS);
+        assertThrows(ResourceNotFoundException.class, () -> pictureRegionLocks.lockForRead(picture, 500, 500, 10, 10));
+        pictureRegionLocks.remove(picture);
+        pictureRegionLocks.lockForWrite(picture, 500, 500, 10, 10).close();
+    }
+}
@@ -1,24 +1,34 @@
 package com.github.assemblathe1.chartographer;
 
 import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
 import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import com.github.assemblathe1.chartographer.services.PictureMetadataCache;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import javax.annotation.PostConstruct;
 import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Optional;
 
 import static org.mockito.BDDMockito.given;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
@@ -27,12 +37,21 @@ public class PicturesControllerStatusBadTests {
 
     @Autowired
     private MockMvc mvc;
+
     Picture picture = new Picture();
     int fragmentWidth;
     int fragmentHeight;
     int maxValidPictureWidth;
     int maxValidPictureHeight;
 
+    @Autowired
+    private PictureMetadataCache pictureMetadataCache;
+
+    @BeforeEach
+    public void clearMetadataCache() {
+        pictureMetadataCache.clear();
+    }
+
     @PostConstruct
     public void postConstruct() {
         picture.setId(1L);
@@ -103,6 +122,30 @@ public class PicturesControllerStatusBadTests {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void givenShortBody_whenSaveBmpPictureFragment_thenStatus400() throws Exception {
+        // Тело обрезано посреди строк фрагмента — запрос отклоняется до записи в папирус
+        byte[] pictureFragment = Files.readAllBytes(Path.of(getTestFile("whenSaveMultipartPictureFragment.bmp")));
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
+
+        MvcResult mvcResult = mvc
+                .perform(post("/chartas/{id}/", picture.getId())
+                        .contentType(MediaType.valueOf("image/bmp"))
+                        .content(Arrays.copyOf(pictureFragment, pictureFragment.length - 100))
+                        .param("x", String.valueOf(0))
+                        .param("y", String.valueOf(0))
+                        .param("width", String.valueOf(fragmentWidth))
+                        .param("height", String.valueOf(fragmentHeight))
+                )
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc
+                .perform(asyncDispatch(mvcResult))
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void givenId_whenGetMultipartPictureFragment_thenStatus400() throws Exception {
         given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
@@ -127,6 +170,42 @@ public class PicturesControllerStatusBadTests {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void givenId_whenGetPictureFragmentsOfInvalidRegions_thenStatus400() throws Exception {
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
+        sendGetPictureFragmentsRequest("0,0,31");
+        sendGetPictureFragmentsRequest("0,0,31,26;x,0,31,26");
+        sendGetPictureFragmentsRequest("0,0,31,26;" + (picture.getWidth() + 1) + ",0,31,26");
+        sendGetPictureFragmentsRequest("0,0,5000,5000;5000,0,10,10");
+    }
+
+    private void sendGetPictureFragmentsRequest(String regions) throws Exception {
+        mvc
+                .perform(get("/chartas/{id}/fragments", picture.getId())
+                        .param("regions", regions)
+                )
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void givenPendingPicture_whenGetPictureFragment_thenStatus503() throws Exception {
+        // Холст папируса ещё создаётся — клиенту предлагается повторить запрос позже
+        Picture pendingPicture = new Picture("pending.bmp", maxValidPictureWidth, maxValidPictureHeight, PictureStatus.PENDING);
+        pendingPicture.setId(2L);
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(pendingPicture));
+        mvc
+                .perform(get("/chartas/{id}/", pendingPicture.getId())
+                        .param("x", String.valueOf(0))
+                        .param("y", String.valueOf(0))
+                        .param("width", String.valueOf(fragmentWidth))
+                        .param("height", String.valueOf(fragmentHeight))
+                )
+                .andDo(print())
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"));
+    }
+
     @Test
     public void givenId_whenDeleteNotExistingPicture_thenStatus404() throws Exception {
         mvc
@@ -3,6 +3,9 @@ package com.github.assemblathe1.chartographer;
 import com.github.assemblathe1.chartographer.entities.Picture;
 import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
 import com.github.assemblathe1.chartographer.services.BitmapFileService;
+import com.github.assemblathe1.chartographer.services.PictureMetadataCache;
+import com.github.assemblathe1.chartographer.services.PictureRegionLocks;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,12 +16,15 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.test.web.servlet.MvcResult;
 
 import javax.annotation.PostConstruct;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Optional;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
@@ -27,7 +33,7 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
-@SpringBootTest
+@SpringBootTest(properties = "journal.enabled=false")
 @AutoConfigureMockMvc
 public class PicturesControllerStatusOkTests {
     @Autowired
@@ -35,6 +41,14 @@ public class PicturesControllerStatusOkTests {
     Picture picture = new Picture();
     long pictureByteSize;
 
+    @Autowired
+    private PictureMetadataCache pictureMetadataCache;
+
+    @BeforeEach
+    public void clearMetadataCache() {
+        pictureMetadataCache.clear();
+    }
+
     @PostConstruct
     public void postConstruct() {
         picture.setId(1L);
@@ -83,11 +97,12 @@ public class PicturesControllerStatusOkTests {
                 Mockito.anyInt(),
                 Mockito.anyInt(),
                 Mockito.anyInt(),
-                Mockito.any(MultipartFile.class),
-                Mockito.any(Picture.class)
+                Mockito.any(InputStream.class),
+                Mockito.any(Picture.class),
+                Mockito.anyLong()
         );
 
-        mvc
+        MvcResult mvcResult = mvc
                 .perform(multipart("/chartas/{id}/", picture.getId())
                         .file(pictureFragment)
                         .param("x", String.valueOf(0))
@@ -95,8 +110,103 @@ public class PicturesControllerStatusOkTests {
                         .param("width", String.valueOf(fragmentWidth))
                         .param("height", String.valueOf(fragmentHeight)
                         )
-                ).andDo(print())
+                )
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc
+                .perform(asyncDispatch(mvcResult))
+                .andDo(print())
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void givenId_whenSavePictureFragmentFromRequestBody_thenStatus200() throws Exception {
+        FileInputStream fileInputStream = new FileInputStream(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        byte[] pictureFragment = fileInputStream.readAllBytes();
+        fileInputStream.close();
+
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
+        Mockito.doNothing().when(bitmapFileService).savePictureFragment(
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.any(InputStream.class),
+                Mockito.any(Picture.class),
+                Mockito.anyLong()
+        );
+
+        MvcResult mvcResult = mvc
+                .perform(post("/chartas/{id}/", picture.getId())
+                        .contentType(MediaType.valueOf("image/bmp"))
+                        .content(pictureFragment)
+                        .param("x", String.valueOf(0))
+                        .param("y", String.valueOf(0))
+                        .param("width", String.valueOf(fragmentWidth))
+                        .param("height", String.valueOf(fragmentHeight)
+                        )
+                )
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc
+                .perform(asyncDispatch(mvcResult))
+                .andDo(print())
                 .andExpect(status().isOk());
+        Mockito.verify(bitmapFileService).savePictureFragment(
+                Mockito.eq(0),
+                Mockito.eq(0),
+                Mockito.eq(fragmentWidth),
+                Mockito.eq(fragmentHeight),
+                Mockito.any(InputStream.class),
+                Mockito.any(Picture.class),
+                Mockito.eq((long) pictureFragment.length)
+        );
+    }
+
+    @Test
+    public void givenId_whenSavePictureFragmentsBatch_thenStatus200andResultsReturn() throws Exception {
+        FileInputStream fileInputStream = new FileInputStream(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        byte[] pictureFragment = fileInputStream.readAllBytes();
+        fileInputStream.close();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(batch);
+        for (int i = 0; i < 2; i++) {
+            records.writeInt(i);
+            records.writeInt(i);
+            records.writeInt(fragmentWidth);
+            records.writeInt(fragmentHeight);
+            records.writeInt(pictureFragment.length);
+            records.write(pictureFragment);
+        }
+
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
+
+        MvcResult mvcResult = mvc
+                .perform(post("/chartas/{id}/fragments", picture.getId())
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(batch.toByteArray())
+                )
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc
+                .perform(asyncDispatch(mvcResult))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[1].x").value(1))
+                .andExpect(jsonPath("$[1].statusCode").value(200));
+        Mockito.verify(bitmapFileService, Mockito.times(2)).savePictureFragment(
+                Mockito.anyInt(),
+                Mockito.anyInt(),
+                Mockito.eq(fragmentWidth),
+                Mockito.eq(fragmentHeight),
+                Mockito.any(InputStream.class),
+                Mockito.any(Picture.class),
+                Mockito.eq((long) pictureFragment.length)
+        );
     }
 
     @Test
@@ -112,15 +222,20 @@ public class PicturesControllerStatusOkTests {
         byteArrayOutputStream.close();
 
         given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
-        Mockito.doReturn(byteArrayOutputStream).when(bitmapFileService).getPictureFragment(
+        Mockito.doAnswer(invocation -> {
+            invocation.getArgument(6, OutputStream.class).write(byteArrayOutputStream.toByteArray());
+            return null;
+        }).when(bitmapFileService).getPictureFragment(
                 Mockito.anyInt(),
                 Mockito.anyInt(),
                 Mockito.anyInt(),
                 Mockito.anyInt(),
-                Mockito.any(Picture.class)
+                Mockito.any(Picture.class),
+                Mockito.anyInt(),
+                Mockito.any(OutputStream.class)
         );
 
-        mvc
+        MvcResult mvcResult = mvc
                 .perform(get("/chartas/{id}/", picture.getId())
                         .param("x", String.valueOf(0))
                         .param("y", String.valueOf(0))
@@ -128,17 +243,84 @@ public class PicturesControllerStatusOkTests {
                         .param("height", String.valueOf(fragmentHeight)
                         )
                 )
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc
+                .perform(asyncDispatch(mvcResult))
                 .andDo(print())
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(MediaType.valueOf("image/bmp")))
-                .andExpect(header().string(HttpHeaders.CONTENT_LENGTH, String.valueOf(sourceFileByteLength)));
+                .andExpect(header().string(HttpHeaders.CONTENT_LENGTH, String.valueOf(sourceFileByteLength)))
+                .andExpect(content().bytes(byteArrayOutputStream.toByteArray()));
+
+    }
+
+    @Test
+    public void givenAcceptPng_whenGetPictureFragment_thenStatus200andPngReturns() throws Exception {
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
 
+        MvcResult mvcResult = mvc
+                .perform(get("/chartas/{id}/", picture.getId())
+                        .param("x", String.valueOf(0))
+                        .param("y", String.valueOf(0))
+                        .param("width", String.valueOf(fragmentWidth))
+                        .param("height", String.valueOf(fragmentHeight))
+                        .header(HttpHeaders.ACCEPT, "image/png, image/bmp;q=0.5")
+                )
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc
+                .perform(asyncDispatch(mvcResult))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_LENGTH));
+        Mockito.verify(bitmapFileService).getPngPictureFragment(
+                Mockito.eq(0),
+                Mockito.eq(0),
+                Mockito.eq(fragmentWidth),
+                Mockito.eq(fragmentHeight),
+                Mockito.any(Picture.class),
+                Mockito.eq(0),
+                Mockito.any(OutputStream.class),
+                Mockito.any(PictureRegionLocks.RowsLock.class)
+        );
+    }
+
+    @Test
+    public void givenCurrentETag_whenGetPictureFragment_thenStatus304() throws Exception {
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
+
+        MvcResult mvcResult = mvc
+                .perform(get("/chartas/{id}/", picture.getId())
+                        .param("x", String.valueOf(0))
+                        .param("y", String.valueOf(0))
+                        .param("width", String.valueOf(fragmentWidth))
+                        .param("height", String.valueOf(fragmentHeight))
+                )
+                .andExpect(request().asyncStarted())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andReturn();
+        String eTag = mvcResult.getResponse().getHeader(HttpHeaders.ETAG);
+
+        mvc
+                .perform(get("/chartas/{id}/", picture.getId())
+                        .param("x", String.valueOf(0))
+                        .param("y", String.valueOf(0))
+                        .param("width", String.valueOf(fragmentWidth))
+                        .param("height", String.valueOf(fragmentHeight))
+                        .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                )
+                .andDo(print())
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, eTag));
     }
 
     @Test
     public void givenId_whenDeletePicture_thenStatus200() throws Exception {
         given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
-        given(bitmapFileService.deletePicture(picture)).willReturn(true);
         mvc
                 .perform(delete("/chartas/{id}/", picture.getId()))
                 .andDo(print())
@@ -1,43 +1,115 @@
 package com.github.assemblathe1.chartographer;
 
+import com.github.assemblathe1.chartographer.dtos.FragmentFormat;
+import com.github.assemblathe1.chartographer.dtos.FragmentResult;
+import com.github.assemblathe1.chartographer.dtos.PictureRegion;
 import com.github.assemblathe1.chartographer.entities.Picture;
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.exceptions.ResourceNotFoundException;
+import com.github.assemblathe1.chartographer.exceptions.ResponseAbortedException;
+import com.github.assemblathe1.chartographer.exceptions.ValidationException;
+import com.github.assemblathe1.chartographer.exceptions.WritingToDiskException;
 import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import com.github.assemblathe1.chartographer.services.BitmapFileService;
+import com.github.assemblathe1.chartographer.services.CanvasAllocator;
+import com.github.assemblathe1.chartographer.services.CanvasTiering;
+import com.github.assemblathe1.chartographer.services.FragmentCache;
+import com.github.assemblathe1.chartographer.services.FragmentJournal;
+import com.github.assemblathe1.chartographer.services.PictureMetadataCache;
+import com.github.assemblathe1.chartographer.services.PictureReaper;
 import com.github.assemblathe1.chartographer.services.PicturesService;
+import com.github.assemblathe1.chartographer.services.WriteBehindBuffer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BrokenInputStream;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
 
 import javax.annotation.PostConstruct;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.UUID;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@SpringBootTest
+@SpringBootTest(properties = {"allocation.maxWait=60000", "journal.folder=${java.io.tmpdir}/chartographer-journal", "versions.tileSize=16"})
 @AutoConfigureMockMvc
+@AutoConfigureMetrics
 public class PicturesServiceTest {
 
     @Autowired
     private PicturesService picturesService;
 
+    @Autowired
+    private WriteBehindBuffer writeBehindBuffer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private CanvasTiering canvasTiering;
+
+    @Autowired
+    private CanvasAllocator canvasAllocator;
+
+    @Autowired
+    private FragmentCache fragmentCache;
+
+    @Autowired
+    private PictureReaper pictureReaper;
+
+    @Autowired
+    private FragmentJournal fragmentJournal;
+
+    @Autowired
+    private BitmapFileService bitmapFileService;
+
+    @Autowired
+    private MockMvc mvc;
+
     @MockBean
     private PicturesRepository picturesRepository;
 
@@ -46,6 +118,14 @@ public class PicturesServiceTest {
     int fragmentWidth = 31;
     int fragmentHeight = 26;
 
+    @Autowired
+    private PictureMetadataCache pictureMetadataCache;
+
+    @BeforeEach
+    public void clearMetadataCache() {
+        pictureMetadataCache.clear();
+    }
+
     @PostConstruct
     public void postConstruct() {
         picture.setId(1L);
@@ -66,7 +146,13 @@ public class PicturesServiceTest {
         assertThat(createdBMPFile).doesNotExist();
         given(picturesRepository.save(Mockito.any(Picture.class))).willReturn(picture);
 
+        // Строка сохраняется в статусе PENDING, холст создаётся в фоне и переводит папирус в READY
         picturesService.createPicture(picture.getWidth(), picture.getHeight());
+        canvasAllocator.awaitAllocation(picture);
+        ArgumentCaptor<Picture> savedPictures = ArgumentCaptor.forClass(Picture.class);
+        verify(picturesRepository, times(2)).save(savedPictures.capture());
+        assertEquals(PictureStatus.PENDING, savedPictures.getAllValues().get(0).getStatus());
+        assertEquals(PictureStatus.READY, savedPictures.getAllValues().get(1).getStatus());
         assertThat(createdBMPFile).exists().hasSize(pictureByteSize);
         assertEquals(URLConnection.guessContentTypeFromName(createdBMPFile.getName()), "image/bmp");
 
@@ -85,6 +171,68 @@ public class PicturesServiceTest {
         }
     }
 
+    @Test
+    public void createMaxSizePictureTest() throws Exception {
+        // Папирус максимального размера создаётся разреженным файлом, без записи нулей на диск
+        Picture maxSizePicture = new Picture(tmpdir + "whenSaveMaxSizePicture.bmp", 20000, 50000);
+        maxSizePicture.setId(2L);
+        File createdBMPFile = new File(maxSizePicture.getUrl());
+        Files.deleteIfExists(createdBMPFile.toPath());
+        given(picturesRepository.save(Mockito.any(Picture.class))).willReturn(maxSizePicture);
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(maxSizePicture));
+
+        picturesService.createPicture(maxSizePicture.getWidth(), maxSizePicture.getHeight());
+        canvasAllocator.awaitAllocation(maxSizePicture);
+        long pictureByteSize = getPictureByteSize(maxSizePicture.getWidth(), maxSizePicture.getHeight());
+        assertThat(createdBMPFile).exists().hasSize(pictureByteSize);
+        // На диске заняты только блоки заголовка и последнего байта, а не 3 ГБ
+        assertTrue(getAllocatedBytes(createdBMPFile) < pictureByteSize / 1000);
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        picturesService.getPictureFragment("2", 19990, 49990, fragmentWidth, fragmentHeight, 0).writeTo(byteArrayOutputStream);
+        BufferedImage bufferedFragment = ImageIO.read(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        assertEquals(new Color(0, 0, 0).getRGB(), bufferedFragment.getRGB(5, 25));
+        picturesService.deletePicture("2");
+        pictureReaper.reap(maxSizePicture);
+        assertThat(createdBMPFile).doesNotExist();
+    }
+
+    @Test
+    public void getPictureLevelFragmentTest() throws Exception {
+        // Папирус 1024 x 1024 имеет два уровня обзора: 512 x 512 и 256 x 256
+        Picture pyramidPicture = new Picture(tmpdir + "whenGetPictureLevelFragment.bmp", 1024, 1024);
+        pyramidPicture.setId(4L);
+        given(picturesRepository.save(Mockito.any(Picture.class))).willReturn(pyramidPicture);
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(pyramidPicture));
+        picturesService.createPicture(pyramidPicture.getWidth(), pyramidPicture.getHeight());
+        canvasAllocator.awaitAllocation(pyramidPicture);
+
+        BufferedImage whiteSquare = new BufferedImage(64, 64, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = whiteSquare.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 64, 64);
+        graphics.dispose();
+        ByteArrayOutputStream whiteSquareBMP = new ByteArrayOutputStream();
+        ImageIO.write(whiteSquare, "bmp", whiteSquareBMP);
+        picturesService.savePictureFragment("4", 128, 128, 64, 64, new MockMultipartFile("file", "whiteSquare.bmp",
+                String.valueOf(MediaType.valueOf("image/bmp")), whiteSquareBMP.toByteArray())).call();
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        picturesService.getPictureFragment("4", 24, 24, 32, 32, 2).writeTo(byteArrayOutputStream);
+        BufferedImage levelFragment = ImageIO.read(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        assertEquals(32, levelFragment.getWidth());
+        assertEquals(Color.WHITE.getRGB(), levelFragment.getRGB(8, 8));
+        assertEquals(Color.WHITE.getRGB(), levelFragment.getRGB(23, 23));
+        assertEquals(Color.BLACK.getRGB(), levelFragment.getRGB(7, 7));
+        assertEquals(Color.BLACK.getRGB(), levelFragment.getRGB(24, 24));
+        assertThrows(ValidationException.class, () -> picturesService.getPictureFragment("4", 0, 0, 32, 32, 3));
+
+        picturesService.deletePicture("4");
+        pictureReaper.reap(pyramidPicture);
+        assertThat(new File(pyramidPicture.getUrl())).doesNotExist();
+        assertThat(new File(tmpdir + "whenGetPictureLevelFragment_2.bmp")).doesNotExist();
+    }
+
     @Test
     public void savePictureFragmentTest() throws Exception {
         // Приверяем и копируем папирус в папку temp
@@ -125,6 +273,7 @@ public class PicturesServiceTest {
         runSavePictureFragment(pictureId, 46, 86, pictureFragment);
 
         // Проверка корректности папируса после восстановления фрагмента
+        writeBehindBuffer.flushAll();
         assertThat(copiedPicture).exists().hasSize(pictureByteSize);
         BufferedImage bufferedPicture = ImageIO.read(copiedPicture);
         assertEquals(bufferedPicture.getWidth(), picture.getWidth());
@@ -145,6 +294,127 @@ public class PicturesServiceTest {
         checkSavedFragmentsInPapyrus(46, 86, 1, 1, bufferedPicture, bufferedFragment);
     }
 
+    @Test
+    public void savePictureFragmentWriteBehindTest() throws Exception {
+        // Фрагмент попадает в буфер, чтение учитывает ещё не сброшенные на диск плитки
+        Picture bufferedPicture = new Picture(tmpdir + "whenSaveWriteBehindPicture.bmp", picture.getWidth(), picture.getHeight());
+        bufferedPicture.setId(3L);
+        File copiedPicture = new File(bufferedPicture.getUrl());
+        Files.deleteIfExists(copiedPicture.toPath());
+        FileUtils.copyFile(new File(getTestFile("whenSaveMultipartPicture.bmp")), copiedPicture);
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(bufferedPicture));
+
+        File restoringFragment = new File(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        BufferedImage bufferedFragment = ImageIO.read(restoringFragment);
+        FileInputStream fileInputStream = new FileInputStream(restoringFragment);
+        MockMultipartFile pictureFragment = new MockMultipartFile("file", "whenSaveMultipartPictureFragment.bmp",
+                String.valueOf(MediaType.valueOf("image/bmp")), fileInputStream);
+        fileInputStream.close();
+        picturesService.savePictureFragment("3", 10, 38, fragmentWidth, fragmentHeight, pictureFragment).call();
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        picturesService.getPictureFragment("3", 10, 38, fragmentWidth, fragmentHeight, 0).writeTo(byteArrayOutputStream);
+        BufferedImage returnedFragment = ImageIO.read(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        for (int i = 0; i < fragmentWidth; i++) {
+            assertEquals(bufferedFragment.getRGB(i, i % fragmentHeight), returnedFragment.getRGB(i, i % fragmentHeight));
+        }
+
+        writeBehindBuffer.flushAll();
+        assertEquals(0, writeBehindBuffer.getBufferedBytes());
+        assertEquals(0, writeBehindBuffer.getBufferedPicturesCount());
+        checkSavedFragmentsInPapyrus(10, 38, 30, 25, ImageIO.read(copiedPicture), bufferedFragment);
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    @Test
+    public void replayFragmentJournalTest() throws Exception {
+        // Фрагмент, которого нет на холсте после сбоя, восстанавливается из журнала
+        Picture journaledPicture = new Picture(8L, tmpdir + "whenReplayFragmentJournal.bmp", picture.getWidth(), picture.getHeight(), PictureStatus.READY);
+        File copiedPicture = new File(journaledPicture.getUrl());
+        File sourcePicture = new File(getTestFile("whenSaveMultipartPicture.bmp"));
+        Files.deleteIfExists(copiedPicture.toPath());
+        FileUtils.copyFile(sourcePicture, copiedPicture);
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(journaledPicture));
+        fragmentJournal.checkpoint();
+
+        File restoringFragment = new File(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        BufferedImage bufferedFragment = ImageIO.read(restoringFragment);
+        FileInputStream fileInputStream = new FileInputStream(restoringFragment);
+        MockMultipartFile pictureFragment = new MockMultipartFile("file", "whenSaveMultipartPictureFragment.bmp",
+                String.valueOf(MediaType.valueOf("image/bmp")), fileInputStream);
+        fileInputStream.close();
+        picturesService.savePictureFragment("8", 10, 38, fragmentWidth, fragmentHeight, pictureFragment).call();
+        assertTrue(Files.size(fragmentJournal.getJournalPath()) > 3L * fragmentWidth * fragmentHeight);
+
+        // Холст теряет фрагмент: буфер отброшен, файл заменён исходным
+        writeBehindBuffer.discard(journaledPicture);
+        bitmapFileService.evictPicture(journaledPicture);
+        FileUtils.copyFile(sourcePicture, copiedPicture);
+
+        fragmentJournal.replay(fragmentJournal.getJournalPath());
+        writeBehindBuffer.flushAll();
+        checkSavedFragmentsInPapyrus(10, 38, 30, 25, ImageIO.read(copiedPicture), bufferedFragment);
+        fragmentJournal.checkpoint();
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    @Test
+    public void pictureFragmentETagTest() throws Exception {
+        // ETag меняется только у фрагментов, которые пересекаются с сохранённым фрагментом, и зависит от формата.
+        // Плитки версий по 16 пикселей (versions.tileSize), поэтому область (0, 80) лежит в других плитках
+        Picture versionedPicture = new Picture(9L, tmpdir + "whenGetPictureFragmentETag.bmp", picture.getWidth(), picture.getHeight(), PictureStatus.READY);
+        File copiedPicture = new File(versionedPicture.getUrl());
+        Files.deleteIfExists(copiedPicture.toPath());
+        FileUtils.copyFile(new File(getTestFile("whenSaveMultipartPicture.bmp")), copiedPicture);
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(versionedPicture));
+
+        String overlappingETag = picturesService.getPictureFragmentETag("9", 0, 0, 20, 20, 0, FragmentFormat.BMP);
+        String distantETag = picturesService.getPictureFragmentETag("9", 0, 80, 20, 20, 0, FragmentFormat.BMP);
+        assertNotEquals(overlappingETag, picturesService.getPictureFragmentETag("9", 0, 0, 20, 20, 0, FragmentFormat.PNG));
+
+        FileInputStream fileInputStream = new FileInputStream(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        MockMultipartFile pictureFragment = new MockMultipartFile("file", "whenSaveMultipartPictureFragment.bmp",
+                String.valueOf(MediaType.valueOf("image/bmp")), fileInputStream);
+        fileInputStream.close();
+        picturesService.savePictureFragment("9", 10, 10, fragmentWidth, fragmentHeight, pictureFragment).call();
+
+        assertNotEquals(overlappingETag, picturesService.getPictureFragmentETag("9", 0, 0, 20, 20, 0, FragmentFormat.BMP));
+        assertEquals(distantETag, picturesService.getPictureFragmentETag("9", 0, 80, 20, 20, 0, FragmentFormat.BMP));
+        writeBehindBuffer.flushAll();
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    @Test
+    public void savePictureFragmentFromRequestBodyTest() throws Exception {
+        // Фрагмент с отрицательной высотой в заголовке хранит строки сверху вниз
+        Picture topDownPicture = new Picture(tmpdir + "whenSaveTopDownPicture.bmp", picture.getWidth(), picture.getHeight());
+        topDownPicture.setId(7L);
+        File copiedPicture = new File(topDownPicture.getUrl());
+        Files.deleteIfExists(copiedPicture.toPath());
+        FileUtils.copyFile(new File(getTestFile("whenSaveMultipartPicture.bmp")), copiedPicture);
+        given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(topDownPicture));
+
+        File restoringFragment = new File(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        BufferedImage bufferedFragment = ImageIO.read(restoringFragment);
+        byte[] bottomUpFragment = Files.readAllBytes(restoringFragment.toPath());
+        byte[] topDownFragment = bottomUpFragment.clone();
+        int rowLength = (bottomUpFragment.length - 54) / fragmentHeight;
+        for (int i = 0; i < fragmentHeight; i++) {
+            System.arraycopy(bottomUpFragment, 54 + i * rowLength, topDownFragment, 54 + (fragmentHeight - 1 - i) * rowLength, rowLength);
+        }
+        ByteBuffer.wrap(topDownFragment, 22, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(-fragmentHeight);
+
+        picturesService.savePictureFragment("7", 46, -10, fragmentWidth, fragmentHeight, new ByteArrayInputStream(topDownFragment)).call();
+        assertThrows(ValidationException.class, () -> picturesService.savePictureFragment(
+                "7", 0, 0, fragmentWidth - 1, fragmentHeight, new ByteArrayInputStream(bottomUpFragment)).call());
+
+        writeBehindBuffer.flushAll();
+        BufferedImage changedPicture = ImageIO.read(copiedPicture);
+        checkSavedFragmentsInPapyrus(46, -10, 1, 11, changedPicture, bufferedFragment);
+        checkSavedFragmentsInPapyrus(46, -10, 4, 25, changedPicture, bufferedFragment);
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
     private void checkSavedFragmentsInPapyrus(int x, int y, int testColorX, int testColorY, BufferedImage bufferedPicture, BufferedImage bufferedFragment) {
         assertEquals(
                 bufferedPicture.getRGB(
@@ -185,7 +455,9 @@ public class PicturesServiceTest {
 
     private void checkReturnedFragment(int x, int y, int testColorX, int testColorY, BufferedImage bufferedPicture) throws IOException {
         // Получаем и проверяем полученный фрагмент
-        byte[] byteArray = picturesService.getPictureFragment(picture.getId().toString(), x, y, fragmentWidth, fragmentHeight).toByteArray();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        picturesService.getPictureFragment(picture.getId().toString(), x, y, fragmentWidth, fragmentHeight, 0).writeTo(byteArrayOutputStream);
+        byte[] byteArray = byteArrayOutputStream.toByteArray();
         assertEquals(byteArray.length, getPictureByteSize(fragmentWidth, fragmentHeight));
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(byteArray);
         BufferedImage bufferedFragment = ImageIO.read(byteArrayInputStream);
@@ -219,14 +491,303 @@ public class PicturesServiceTest {
 
         given(picturesRepository.findById(Mockito.anyLong())).willReturn(Optional.of(picture));
         doNothing().when(picturesRepository).deleteById(Mockito.anyLong());
+        // Удаление только помечает папирус, файл удаляется в фоне
         picturesService.deletePicture(picture.getId().toString());
+        ArgumentCaptor<Picture> deletedPicture = ArgumentCaptor.forClass(Picture.class);
+        verify(picturesRepository).save(deletedPicture.capture());
+        assertEquals(PictureStatus.DELETED, deletedPicture.getValue().getStatus());
+        assertThrows(ResourceNotFoundException.class, () -> picturesService.findPictureById(picture.getId().toString()));
+        assertThat(copied).exists();
+
+        pictureReaper.reap(deletedPicture.getValue());
         assertThat(copied).doesNotExist();
+        verify(picturesRepository).deleteById(picture.getId());
+    }
+
+    @Test
+    public void reclaimOrphanedFilesTest() throws Exception {
+        // Файлы без строки в таблице удаляются при сверке, файлы известных папирусов остаются
+        File folder = Files.createTempDirectory("whenReclaimOrphanedFiles").toFile();
+        File knownFile = new File(folder, UUID.randomUUID() + ".bmp");
+        File knownLevelFile = new File(knownFile.getPath().replace(".bmp", "_1.bmp"));
+        File orphanedFile = new File(folder, UUID.randomUUID() + ".tiles");
+        File otherFile = new File(folder, "notes.txt");
+        for (File file : List.of(knownFile, knownLevelFile, orphanedFile, otherFile)) FileUtils.writeByteArrayToFile(file, new byte[1024]);
+        Picture knownPicture = new Picture(7L, knownFile.getPath(), picture.getWidth(), picture.getHeight(), PictureStatus.READY);
+        given(picturesRepository.findAll(Mockito.any(Pageable.class))).willReturn(new PageImpl<>(List.of(knownPicture)));
+
+        pictureReaper.reclaimOrphanedFiles(folder.toPath(), System.currentTimeMillis() + 1000);
+        assertThat(knownFile).exists();
+        assertThat(knownLevelFile).exists();
+        assertThat(otherFile).exists();
+        assertThat(orphanedFile).doesNotExist();
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Test
+    public void findPictureByIdMetadataCacheTest() {
+        // Повторные запросы, в том числе к несуществующему папирусу, не обращаются к базе данных
+        Picture cachedPicture = new Picture(tmpdir + "whenFindPicture.bmp", picture.getWidth(), picture.getHeight());
+        cachedPicture.setId(5L);
+        given(picturesRepository.findById(5L)).willReturn(Optional.of(cachedPicture));
+        given(picturesRepository.findById(6L)).willReturn(Optional.empty());
+
+        assertEquals(cachedPicture, picturesService.findPictureById("5"));
+        assertEquals(cachedPicture, picturesService.findPictureById("5"));
+        assertThrows(ResourceNotFoundException.class, () -> picturesService.findPictureById("6"));
+        assertThrows(ResourceNotFoundException.class, () -> picturesService.findPictureById("6"));
+        verify(picturesRepository, times(1)).findById(5L);
+        verify(picturesRepository, times(1)).findById(6L);
+    }
+
+    @Test
+    public void savePictureFragmentsTest() throws Exception {
+        // Пакет применяется по порядку, ошибочный фрагмент не прерывает пакет, обрыв записи завершает его
+        Picture batchPicture = new Picture(tmpdir + "whenSaveFragmentsBatch.bmp", picture.getWidth(), picture.getHeight());
+        batchPicture.setId(11L);
+        File copiedPicture = new File(batchPicture.getUrl());
+        Files.deleteIfExists(copiedPicture.toPath());
+        FileUtils.copyFile(new File(getTestFile("whenSaveMultipartPicture.bmp")), copiedPicture);
+        given(picturesRepository.findById(11L)).willReturn(Optional.of(batchPicture));
+
+        File restoringFragment = new File(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        BufferedImage bufferedFragment = ImageIO.read(restoringFragment);
+        byte[] fragment = Files.readAllBytes(restoringFragment.toPath());
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(batch);
+        for (int[] position : new int[][]{{10, 38}, {1000, 38}, {-10, -10}}) {
+            records.writeInt(position[0]);
+            records.writeInt(position[1]);
+            records.writeInt(fragmentWidth);
+            records.writeInt(fragmentHeight);
+            records.writeInt(fragment.length);
+            records.write(fragment);
+        }
+        records.writeInt(0);
+        records.writeShort(0);
+
+        List<FragmentResult> results = picturesService.savePictureFragments("11", new ByteArrayInputStream(batch.toByteArray())).call();
+        assertEquals(4, results.size());
+        assertEquals(200, results.get(0).getStatusCode());
+        assertEquals(400, results.get(1).getStatusCode());
+        assertEquals(List.of("Fragment and papyrus do not cross by x"), results.get(1).getErrorFieldsMessages());
+        assertEquals(200, results.get(2).getStatusCode());
+        assertEquals(400, results.get(3).getStatusCode());
+
+        // Обрыв соединения посреди третьего фрагмента не отменяет результаты уже применённых фрагментов
+        byte[] cutBatch = Arrays.copyOf(batch.toByteArray(), 3 * (20 + fragment.length) - 100);
+        List<FragmentResult> cutResults = picturesService.savePictureFragments("11",
+                new SequenceInputStream(new ByteArrayInputStream(cutBatch), new BrokenInputStream())).call();
+        assertEquals(3, cutResults.size());
+        assertEquals(200, cutResults.get(0).getStatusCode());
+        assertEquals(400, cutResults.get(1).getStatusCode());
+        assertEquals(500, cutResults.get(2).getStatusCode());
+        assertEquals(-10, cutResults.get(2).getX());
+
+        writeBehindBuffer.flushAll();
+        BufferedImage savedPicture = ImageIO.read(copiedPicture);
+        checkSavedFragmentsInPapyrus(10, 38, 30, 25, savedPicture, bufferedFragment);
+        checkSavedFragmentsInPapyrus(-10, -10, 15, 15, savedPicture, bufferedFragment);
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    @Test
+    public void getPictureFragmentsTest() throws Exception {
+        // Фрагменты нескольких областей, в том числе пересекающихся и выходящих за края, совпадают с одиночными запросами
+        Picture regionsPicture = new Picture(getTestFile("whenGetMultipartPictureFragment.bmp"), picture.getWidth(), picture.getHeight());
+        regionsPicture.setId(12L);
+        given(picturesRepository.findById(12L)).willReturn(Optional.of(regionsPicture));
+        List<PictureRegion> regions = picturesService.parseRegions("-10,-10,31,26;5,5,31,26;40,90,31,26");
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        picturesService.getPictureFragments("12", regions, 0, "boundary").writeTo(byteArrayOutputStream);
+        assertEquals(picturesService.getPictureFragmentsLength("12", regions, 0, "boundary"), byteArrayOutputStream.size());
+        // Одиночные фрагменты рисуются заново, а не берутся из кэша, заполненного запросом областей
+        fragmentCache.invalidate(12L);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (PictureRegion region : regions) {
+            expected.write(("--boundary\r\nContent-Type: image/bmp\r\nContent-Location: /chartas/12/?x=" + region.getX()
+                    + "&y=" + region.getY() + "&width=31&height=26&level=0\r\nContent-Length: "
+                    + getPictureByteSize(31, 26) + "\r\n\r\n").getBytes());
+            picturesService.getPictureFragment("12", region.getX(), region.getY(), region.getWidth(), region.getHeight(), 0).writeTo(expected);
+            expected.write("\r\n".getBytes());
+        }
+        expected.write("--boundary--\r\n".getBytes());
+        assertArrayEquals(expected.toByteArray(), byteArrayOutputStream.toByteArray());
+    }
+
+    @Test
+    public void getFullWidthPictureFragmentTest() throws Exception {
+        // Фрагмент во всю ширину папируса передаётся из файла целиком, строки буферизованных плиток берутся из буфера
+        Picture fullWidthPicture = new Picture(tmpdir + "whenGetFullWidthPicture.bmp", picture.getWidth(), picture.getHeight());
+        fullWidthPicture.setId(14L);
+        File copiedPicture = new File(fullWidthPicture.getUrl());
+        Files.deleteIfExists(copiedPicture.toPath());
+        FileUtils.copyFile(new File(getTestFile("whenSaveMultipartPicture.bmp")), copiedPicture);
+        given(picturesRepository.findById(14L)).willReturn(Optional.of(fullWidthPicture));
+        BufferedImage bufferedPicture = ImageIO.read(copiedPicture);
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        picturesService.getPictureFragment("14", 0, 90, picture.getWidth(), 20, 0).writeTo(byteArrayOutputStream);
+        assertEquals(getPictureByteSize(picture.getWidth(), 20), byteArrayOutputStream.size());
+        BufferedImage returnedFragment = ImageIO.read(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        for (int i = 0; i < picture.getWidth(); i++) {
+            for (int j = 0; j < 20; j++) {
+                int expected = 90 + j < picture.getHeight() ? bufferedPicture.getRGB(i, 90 + j) : 0xff000000;
+                assertEquals(expected, returnedFragment.getRGB(i, j));
+            }
+        }
+
+        File restoringFragment = new File(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        BufferedImage bufferedFragment = ImageIO.read(restoringFragment);
+        FileInputStream fileInputStream = new FileInputStream(restoringFragment);
+        MockMultipartFile pictureFragment = new MockMultipartFile("file", "whenSaveMultipartPictureFragment.bmp",
+                String.valueOf(MediaType.valueOf("image/bmp")), fileInputStream);
+        fileInputStream.close();
+        picturesService.savePictureFragment("14", 10, 38, fragmentWidth, fragmentHeight, pictureFragment).call();
+
+        byteArrayOutputStream = new ByteArrayOutputStream();
+        picturesService.getPictureFragment("14", 0, 38, picture.getWidth(), fragmentHeight, 0).writeTo(byteArrayOutputStream);
+        returnedFragment = ImageIO.read(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        for (int i = 0; i < fragmentWidth; i++) {
+            for (int j = 0; j < fragmentHeight; j++) assertEquals(bufferedFragment.getRGB(i, j), returnedFragment.getRGB(10 + i, j));
+        }
+
+        writeBehindBuffer.flushAll();
+        Files.deleteIfExists(copiedPicture.toPath());
+    }
+
+    @Test
+    public void getPngPictureFragmentTest() throws Exception {
+        // PNG-фрагмент, в том числе выходящий за края, содержит те же пиксели, что и BMP-фрагмент
+        Picture pngPicture = new Picture(getTestFile("whenGetMultipartPictureFragment.bmp"), picture.getWidth(), picture.getHeight());
+        pngPicture.setId(13L);
+        given(picturesRepository.findById(13L)).willReturn(Optional.of(pngPicture));
+
+        for (int[] region : new int[][]{{5, 5}, {-10, -10}, {40, 90}}) {
+            ByteArrayOutputStream bmpFragment = new ByteArrayOutputStream();
+            picturesService.getPictureFragment("13", region[0], region[1], fragmentWidth, fragmentHeight, 0, FragmentFormat.BMP).writeTo(bmpFragment);
+            ByteArrayOutputStream pngFragment = new ByteArrayOutputStream();
+            picturesService.getPictureFragment("13", region[0], region[1], fragmentWidth, fragmentHeight, 0, FragmentFormat.PNG).writeTo(pngFragment);
+
+            BufferedImage expected = ImageIO.read(new ByteArrayInputStream(bmpFragment.toByteArray()));
+            BufferedImage returned = ImageIO.read(new ByteArrayInputStream(pngFragment.toByteArray()));
+            assertEquals(fragmentWidth, returned.getWidth());
+            assertEquals(fragmentHeight, returned.getHeight());
+            for (int i = 0; i < fragmentWidth; i++) {
+                for (int j = 0; j < fragmentHeight; j++) assertEquals(expected.getRGB(i, j), returned.getRGB(i, j));
+            }
+        }
+    }
+
+    @Test
+    public void compressedPictureTest() throws Exception {
+        // Остывший папирус сжимается по плиткам, читается без распаковки и распаковывается при следующей записи
+        Picture coldPicture = new Picture(tmpdir + "whenCompressPicture.bmp", picture.getWidth(), picture.getHeight());
+        coldPicture.setId(10L);
+        File rawFile = new File(coldPicture.getUrl());
+        File compressedFile = new File(tmpdir + "whenCompressPicture.tiles");
+        Files.deleteIfExists(compressedFile.toPath());
+        FileUtils.copyFile(new File(getTestFile("whenGetMultipartPictureFragment.bmp")), rawFile);
+        BufferedImage bufferedPicture = ImageIO.read(rawFile);
+        given(picturesRepository.findById(10L)).willReturn(Optional.of(coldPicture));
+
+        Object coldAfter = ReflectionTestUtils.getField(canvasTiering, "coldAfter");
+        ReflectionTestUtils.setField(canvasTiering, "coldAfter", 0L);
+        canvasTiering.compressIfCold(coldPicture);
+        ReflectionTestUtils.setField(canvasTiering, "coldAfter", coldAfter);
+        assertThat(rawFile).doesNotExist();
+        assertThat(compressedFile).exists();
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        picturesService.getPictureFragment("10", -5, 30, fragmentWidth, fragmentHeight, 0).writeTo(byteArrayOutputStream);
+        BufferedImage returnedFragment = ImageIO.read(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        for (int i = 5; i < fragmentWidth; i++) {
+            assertEquals(bufferedPicture.getRGB(i - 5, 30 + i % fragmentHeight), returnedFragment.getRGB(i, i % fragmentHeight));
+        }
+
+        File restoringFragment = new File(getTestFile("whenSaveMultipartPictureFragment.bmp"));
+        BufferedImage bufferedFragment = ImageIO.read(restoringFragment);
+        picturesService.savePictureFragment("10", 10, 38, fragmentWidth, fragmentHeight, new FileInputStream(restoringFragment)).call();
+        assertThat(rawFile).exists().hasSize(pictureByteSize);
+        assertThat(compressedFile).doesNotExist();
+
+        writeBehindBuffer.flushAll();
+        BufferedImage promotedPicture = ImageIO.read(rawFile);
+        checkSavedFragmentsInPapyrus(10, 38, 30, 25, promotedPicture, bufferedFragment);
+        assertEquals(bufferedPicture.getRGB(3, 3), promotedPicture.getRGB(3, 3));
+        Files.deleteIfExists(rawFile.toPath());
+    }
+
+    @Test
+    public void fragmentMetricsTest() throws Exception {
+        // Чтение фрагмента публикует метрики, доступные на /actuator/prometheus
+        Picture measuredPicture = new Picture(getTestFile("whenGetMultipartPictureFragment.bmp"), picture.getWidth(), picture.getHeight());
+        measuredPicture.setId(8L);
+        given(picturesRepository.findById(8L)).willReturn(Optional.of(measuredPicture));
+        // Реестр общий для всех тестов контекста, поэтому проверяем приращения
+        long fragments = getTimerCount("chartographer.fragment", "operation", "get", "shape", "edge");
+        long lookups = getTimerCount("chartographer.repository.lookup");
+        picturesService.getPictureFragment("8", -10, -10, fragmentWidth, fragmentHeight, 0).writeTo(new ByteArrayOutputStream());
+
+        assertEquals(fragments + 1, getTimerCount("chartographer.fragment", "operation", "get", "shape", "edge"));
+        assertEquals(lookups + 1, getTimerCount("chartographer.repository.lookup"));
+        assertTrue(meterRegistry.get("chartographer.fragment.bytes").tag("operation", "get").summary().max() >= getPictureByteSize(fragmentWidth, fragmentHeight));
+        assertEquals(0, meterRegistry.get("chartographer.requests.in.flight").gauge().value());
+        assertEquals(0, meterRegistry.get("chartographer.pictures.in.flight").gauge().value());
+
+        String scrape = mvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertTrue(scrape.contains("chartographer_fragment_seconds_bucket"));
+        assertTrue(scrape.contains("chartographer_fragment_cache_gets_total"));
+    }
+
+    @Test
+    public void getPictureFragmentFailureTest() throws Exception {
+        // Ошибка до первого байта ответа превращается в 500
+        Picture missingPicture = new Picture(tmpdir + "whenGetMissingPicture.bmp", picture.getWidth(), picture.getHeight());
+        missingPicture.setId(15L);
+        given(picturesRepository.findById(15L)).willReturn(Optional.of(missingPicture));
+        assertThrows(WritingToDiskException.class,
+                () -> picturesService.getPictureFragment("15", 0, 0, fragmentWidth, fragmentHeight, 0).writeTo(new ByteArrayOutputStream()));
+
+        // После первого байта заголовки уже отправлены, поэтому ответ обрывается, а не завершается коротким телом
+        Picture sentPicture = new Picture(getTestFile("whenGetMultipartPictureFragment.bmp"), picture.getWidth(), picture.getHeight());
+        sentPicture.setId(16L);
+        given(picturesRepository.findById(16L)).willReturn(Optional.of(sentPicture));
+        OutputStream resetConnection = new OutputStream() {
+            private int written;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++written > 100) throw new IOException("Connection reset by peer");
+            }
+        };
+        assertThrows(ResponseAbortedException.class,
+                () -> picturesService.getPictureFragment("16", 0, 0, fragmentWidth, fragmentHeight, 0).writeTo(resetConnection));
+    }
+
+    private long getTimerCount(String name, String... tags) {
+        Timer timer = meterRegistry.find(name).tags(tags).timer();
+        return timer == null ? 0 : timer.count();
     }
 
     private String getTestFile(String fileName) {
         return getClass().getClassLoader().getResource("pictures/" + fileName).getPath();
     }
 
+    /**
+     * Bytes the file takes on disk. du counts allocated blocks, so holes of a sparse file are not included.
+     */
+    private long getAllocatedBytes(File file) throws IOException, InterruptedException {
+        Process du = new ProcessBuilder("du", "-k", file.getPath()).start();
+        String output = new String(du.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+        assertEquals(0, du.waitFor());
+        return Long.parseLong(output.trim().split("\\s+")[0]) * 1024;
+    }
+
     private long getPictureByteSize(int width, int height) {
         return 54 + width * height * 3L + height * (width * 3 % 4 == 0
                 ? 0
@@ -234,7 +795,7 @@ public class PicturesServiceTest {
         );
     }
 
-    private void runSavePictureFragment(String pictureId, int x, int y, MockMultipartFile pictureFragment) {
-        picturesService.savePictureFragment(pictureId, x, y, fragmentWidth, fragmentHeight, pictureFragment);
+    private void runSavePictureFragment(String pictureId, int x, int y, MockMultipartFile pictureFragment) throws Exception {
+        picturesService.savePictureFragment(pictureId, x, y, fragmentWidth, fragmentHeight, pictureFragment).call();
     }
 }
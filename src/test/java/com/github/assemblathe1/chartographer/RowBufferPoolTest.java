@@ -0,0 +1,48 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.services.RowBufferPool;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class RowBufferPoolTest {
+    private final RowBufferPool rowBufferPool = new RowBufferPool();
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(rowBufferPool, "poolSize", 2);
+        ReflectionTestUtils.setField(rowBufferPool, "maxPictureWidth", 2000);
+        rowBufferPool.createPool();
+    }
+
+    @Test
+    public void givenReleasedBuffers_whenAcquire_thenBuffersReusedUpToPoolSize() {
+        byte[] first = rowBufferPool.acquire(100);
+        byte[] second = rowBufferPool.acquire(6003);
+        byte[] third = rowBufferPool.acquire(1);
+        assertEquals(6003, first.length);
+        rowBufferPool.release(first);
+        rowBufferPool.release(second);
+        rowBufferPool.release(third);
+        assertEquals(2, rowBufferPool.getPooledCount());
+
+        assertSame(first, rowBufferPool.acquire(10));
+        assertSame(second, rowBufferPool.acquire(10));
+        assertNotSame(third, rowBufferPool.acquire(10));
+    }
+
+    @Test
+    public void givenLongRow_whenAcquire_thenOwnBufferNotPooled() {
+        byte[] buffer = rowBufferPool.acquire(6004);
+        assertEquals(6004, buffer.length);
+        rowBufferPool.release(buffer);
+        assertEquals(0, rowBufferPool.getPooledCount());
+
+        assertSame(rowBufferPool.getZeros(1), rowBufferPool.getZeros(6003));
+        assertEquals(6004, rowBufferPool.getZeros(6004).length);
+    }
+}
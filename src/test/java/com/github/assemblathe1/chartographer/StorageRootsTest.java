@@ -0,0 +1,78 @@
+package com.github.assemblathe1.chartographer;
+
+import com.github.assemblathe1.chartographer.entities.PictureStatus;
+import com.github.assemblathe1.chartographer.repositories.PicturesRepository;
+import com.github.assemblathe1.chartographer.services.StorageRoots;
+import com.github.assemblathe1.chartographer.utils.StartupArgumentsRunner;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.BDDMockito.given;
+
+public class StorageRootsTest {
+    private final StartupArgumentsRunner startupArgumentsRunner = new StartupArgumentsRunner();
+    private final PicturesRepository picturesRepository = Mockito.mock(PicturesRepository.class);
+    private final StorageRoots storageRoots = new StorageRoots(startupArgumentsRunner, picturesRepository);
+
+    @BeforeEach
+    public void setUp() {
+        startupArgumentsRunner.run("/disk1/pictures", "--server.port=8081", "/disk2/pictures", "/disk3/pictures");
+    }
+
+    @Test
+    public void givenFolderArguments_whenGetRoots_thenSpringOptionsSkipped() {
+        assertEquals(List.of("/disk1/pictures", "/disk2/pictures", "/disk3/pictures"), storageRoots.getRoots());
+    }
+
+    @Test
+    public void givenRoundRobinPlacement_whenChoose_thenRootsTakenInTurn() {
+        ReflectionTestUtils.setField(storageRoots, "placement", StorageRoots.Placement.ROUND_ROBIN);
+        assertEquals("/disk1/pictures", storageRoots.choose("a.bmp", 10, 15));
+        assertEquals("/disk2/pictures", storageRoots.choose("a.bmp", 10, 15));
+        assertEquals("/disk3/pictures", storageRoots.choose("a.bmp", 10, 15));
+        assertEquals("/disk1/pictures", storageRoots.choose("a.bmp", 10, 15));
+    }
+
+    @Test
+    public void givenLeastUsedPlacement_whenChoose_thenRootWithFewestPixelsChosen() {
+        ReflectionTestUtils.setField(storageRoots, "placement", StorageRoots.Placement.LEAST_USED);
+        given(picturesRepository.sumPixelsByStorageRoot(Set.of(PictureStatus.READY, PictureStatus.PENDING))).willReturn(List.of(
+                new Object[]{"/disk1/pictures", 300L},
+                new Object[]{"/disk2/pictures", 100L},
+                new Object[]{"/disk3/pictures", 200L}
+        ));
+        assertEquals("/disk2/pictures", storageRoots.choose("a.bmp", 10, 15));
+    }
+
+    @Test
+    public void givenLeastUsedPlacement_whenChooseBeforeRowsSaved_thenReservedPixelsCounted() {
+        ReflectionTestUtils.setField(storageRoots, "placement", StorageRoots.Placement.LEAST_USED);
+        given(picturesRepository.sumPixelsByStorageRoot(Set.of(PictureStatus.READY, PictureStatus.PENDING))).willReturn(List.of(
+                new Object[]{"/disk1/pictures", 300L},
+                new Object[]{"/disk2/pictures", 100L},
+                new Object[]{"/disk3/pictures", 200L}
+        ));
+        assertEquals("/disk2/pictures", storageRoots.choose("a.bmp", 10, 15));
+        assertEquals("/disk3/pictures", storageRoots.choose("b.bmp", 10, 15));
+        assertEquals("/disk2/pictures", storageRoots.choose("c.bmp", 10, 15));
+        storageRoots.release("/disk2/pictures", 10, 15);
+        storageRoots.release("/disk2/pictures", 10, 15);
+        storageRoots.release("/disk3/pictures", 10, 15);
+        assertEquals("/disk2/pictures", storageRoots.choose("d.bmp", 10, 15));
+    }
+
+    @Test
+    public void givenHashPlacement_whenChoose_thenSameNameSameRoot() {
+        ReflectionTestUtils.setField(storageRoots, "placement", StorageRoots.Placement.HASH);
+        String fileName = "0b8c1ed4-3e2f-4a4e-9d3c-0d2f1b7b6a55.bmp";
+        assertEquals(storageRoots.choose(fileName, 10, 15), storageRoots.choose(fileName, 10, 15));
+        assertEquals(List.of("/disk1/pictures", "/disk2/pictures", "/disk3/pictures").get(Math.floorMod(fileName.hashCode(), 3)),
+                storageRoots.choose(fileName, 10, 15));
+    }
+}